@@ -3,6 +3,6 @@ public class CommonProperties {
     public static int unchokingInterval;
     public static int optUnchokingInterval;
     public static String fileName;
-    public static int fileSize;
+    public static long fileSize;
     public static int pieceSize;
 }
@@ -0,0 +1,96 @@
+import java.lang.management.*;
+import java.nio.*;
+import java.util.*;
+
+/**
+ * @description Round-trip every message type through MessageCodec with reused buffers and report the heap
+ * allocated per message, which has to stay at zero once the JIT has warmed up. The benchmark exits with status 1 if
+ * it doesn't, a single object per message is already 16 bytes or more.
+ */
+public class CodecBenchmark {
+    private static final int PIECE_NUM = 1163;
+    private static final int PIECE_SIZE = 16384;
+    private static final char[] CONTROL_TYPES = {MessageCodec.CHOKE, MessageCodec.UNCHOKE, MessageCodec.INTERESTED, MessageCodec.NOT_INTERESTED};
+    private static final char[] INDEX_TYPES = {MessageCodec.HAVE, MessageCodec.REQUEST};
+
+    // Allowance for the few bytes the measurement itself allocates once
+    private static final double MAX_BYTES_PER_MESSAGE = 0.1;
+
+    private final ByteBuffer buffer = ByteBuffer.allocate(MessageCodec.HEADER_LEN + MessageCodec.INDEX_LEN + PIECE_SIZE);
+    private final Bitfield bitfield = new Bitfield(PIECE_NUM), decodedBitfield = new Bitfield(PIECE_NUM);
+    private final byte[] content = new byte[PIECE_SIZE];
+    private long checksum = 0;
+
+    /**
+     * Encode one message of each type and the handshake, then decode them back
+     * @return Number of messages going through the codec
+     */
+    private int roundTrip(int round) {
+        int pieceIndex = round % PIECE_NUM;
+
+        buffer.clear();
+        MessageCodec.encodeHandshake(buffer, 1000 + round).flip();
+        check(MessageCodec.decodeHandshakePeerId(buffer) == 1000 + round, "handshake");
+
+        buffer.clear();
+        MessageCodec.encodeChoke(buffer);
+        MessageCodec.encodeUnchoke(buffer);
+        MessageCodec.encodeInterested(buffer);
+        MessageCodec.encodeNotInterested(buffer);
+        MessageCodec.encodeHave(buffer, pieceIndex);
+        MessageCodec.encodeRequest(buffer, pieceIndex);
+        buffer.flip();
+        for (char type : CONTROL_TYPES) {
+            check(buffer.getInt() == 1 && buffer.get() == type, "control message");
+        }
+        for (char type : INDEX_TYPES) {
+            check(buffer.getInt() == 5 && buffer.get() == type, "index message");
+            check(MessageCodec.decodeIndex(buffer) == pieceIndex, "piece index");
+        }
+
+        if (bitfield.get(pieceIndex)) bitfield.clear(pieceIndex);
+        else bitfield.set(pieceIndex);
+        buffer.clear();
+        MessageCodec.encodeBitfield(buffer, bitfield).flip();
+        int payloadLen = buffer.getInt() - 1;
+        check(buffer.get() == MessageCodec.BITFIELD && payloadLen == MessageCodec.bitfieldPayloadLen(PIECE_NUM), "bitfield header");
+        check(MessageCodec.decodeBitfield(buffer, decodedBitfield).get(pieceIndex) == bitfield.get(pieceIndex), "bitfield");
+
+        content[pieceIndex % PIECE_SIZE] = (byte)round;
+        buffer.clear();
+        MessageCodec.encodePiece(buffer, pieceIndex, content).flip();
+        check(buffer.getInt() == 1 + MessageCodec.INDEX_LEN + PIECE_SIZE && buffer.get() == MessageCodec.PIECE, "piece header");
+        check(MessageCodec.decodeIndex(buffer) == pieceIndex, "piece index");
+        checksum += buffer.get(buffer.position() + pieceIndex % PIECE_SIZE);
+        return 9;
+    }
+
+    private static void check(boolean ok, String what) {
+        if (!ok) throw new IllegalStateException("Round trip mismatch: " + what);
+    }
+
+    public static void main(String[] args) {
+        int rounds = args.length > 0 ? Integer.parseInt(args[0]) : 200000;
+        CodecBenchmark benchmark = new CodecBenchmark();
+        com.sun.management.ThreadMXBean threadBean = (com.sun.management.ThreadMXBean)ManagementFactory.getThreadMXBean();
+        long threadId = Thread.currentThread().getId();
+
+        // Warm up so that the measured loop runs compiled code
+        for (int i = 0; i < rounds; i++) benchmark.roundTrip(i);
+
+        long messages = 0;
+        long allocatedBefore = threadBean.getThreadAllocatedBytes(threadId);
+        long startTime = System.nanoTime();
+        for (int i = 0; i < rounds; i++) messages += benchmark.roundTrip(i);
+        long endTime = System.nanoTime();
+        long allocated = threadBean.getThreadAllocatedBytes(threadId) - allocatedBefore;
+
+        System.out.println("Messages round-tripped: " + messages + " (checksum " + benchmark.checksum + ")");
+        System.out.printf("Throughput: %.0f messages/s%n", messages * 1e9 / (endTime - startTime));
+        System.out.printf("Heap allocated: %d bytes in total, %.4f bytes/message%n", allocated, allocated * 1.0 / messages);
+        if (allocated * 1.0 / messages > MAX_BYTES_PER_MESSAGE) {
+            System.out.println("FAIL: the codec allocates on the round trip, more than " + MAX_BYTES_PER_MESSAGE + " bytes/message");
+            System.exit(1);
+        }
+    }
+}
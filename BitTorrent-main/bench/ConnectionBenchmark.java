@@ -0,0 +1,180 @@
+import java.io.*;
+import java.net.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.file.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+/**
+ * @description Open many loopback connections the way the blocking peers hold their neighbors and bounce HAVE
+ * messages over all of them at once. Each end of a connection is a handler started with PeerThreads, which opens a
+ * FrameTransport, exchanges handshakes, negotiates raw framing and then reads frames in a loop, while its answers go
+ * through the queue of the transport and its own writer thread, so every connection holds four threads like a pair
+ * of peer sessions does. Runs once with platform threads and once with virtual threads, each in its own JVM so that
+ * the memory of one doesn't show in the other, and reports the kind of threads PeerThreads actually made, the time to
+ * set the connections up including the handshakes, the message throughput and the resident and heap memory with
+ * every connection open.
+ * Usage: java -cp bench:peer_1001 ConnectionBenchmark [connections] [round trips per connection]
+ */
+public class ConnectionBenchmark {
+    private static final int EXTENSIONS = 1 << MessageCodec.EXT_RAW_FRAMING;
+    private static final int HAVE_LEN = MessageCodec.HEADER_LEN + MessageCodec.INDEX_LEN;
+
+    /**
+     * Exchange handshake messages and settle the framing like a peer session, which starts the writer thread
+     */
+    private static void handshake(FrameTransport transport, int peerId) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(MessageCodec.HANDSHAKE_LEN);
+        transport.send(MessageCodec.encodeHandshake(buffer, peerId, EXTENSIONS), (ByteBuffer)null);
+        buffer.clear();
+        transport.readFully(buffer.array(), 0, MessageCodec.HANDSHAKE_LEN);
+        transport.negotiate(EXTENSIONS & MessageCodec.decodeHandshakeExtensions(buffer));
+    }
+
+    /**
+     * Accepting side of a connection, answers every HAVE message with one for the same piece until it is closed
+     */
+    private static void serve(Socket socket) {
+        ByteBuffer frame = ByteBuffer.allocate(HAVE_LEN);
+        FrameTransport transport = null;
+        try {
+            transport = new FrameTransport(socket, false, Long.MAX_VALUE, 0);
+            handshake(transport, 2);
+            while (true) {
+                transport.readFully(frame.array(), 0, HAVE_LEN);
+                int pieceIndex = frame.getInt(MessageCodec.HEADER_LEN);
+                frame.clear();
+                transport.send(MessageCodec.encodeHave(frame, pieceIndex), (ByteBuffer)null);
+            }
+        }
+        catch (IOException ignored) {
+        }
+        finally {
+            close(transport, socket);
+        }
+    }
+
+    /**
+     * Connecting side, sends HAVE messages and waits for each answer once every connection is open
+     */
+    private static void ping(Socket socket, int roundTrips, CountDownLatch ready, CountDownLatch start, CountDownLatch done, AtomicLong messages) {
+        ByteBuffer frame = ByteBuffer.allocate(HAVE_LEN);
+        FrameTransport transport = null;
+        try {
+            transport = new FrameTransport(socket, true, Long.MAX_VALUE, 0);
+            handshake(transport, 1);
+            ready.countDown();
+            start.await();
+            for (int i = 0; i < roundTrips; i++) {
+                frame.clear();
+                transport.send(MessageCodec.encodeHave(frame, i), (ByteBuffer)null);
+                transport.readFully(frame.array(), 0, HAVE_LEN);
+            }
+            messages.addAndGet(roundTrips);
+        }
+        catch (IOException | InterruptedException ignored) {
+        }
+        finally {
+            close(transport, socket);
+            done.countDown();
+        }
+    }
+
+    private static void close(FrameTransport transport, Socket socket) {
+        try {
+            if (transport != null) transport.close();
+            else socket.close();
+        }
+        catch (IOException ignored) {
+        }
+    }
+
+    /**
+     * Resident memory of this process from /proc, in kB, or -1 where there is no /proc
+     */
+    private static long residentKb() {
+        try {
+            for (String line : Files.readAllLines(Paths.get("/proc/self/status"))) {
+                if (line.startsWith("VmRSS:")) return Long.parseLong(line.replaceAll("[^0-9]", ""));
+            }
+        }
+        catch (IOException ignored) {
+        }
+        return -1;
+    }
+
+    /**
+     * One run in this JVM with the given kind of threads
+     */
+    private static void run(String mode, int connectionNum, int roundTrips) throws Exception {
+        if (mode.equals("virtual")) PeerThreads.useVirtual();
+        System.out.println(mode + " run: PeerThreads makes " + PeerThreads.kind() + " threads on Java " + System.getProperty("java.version"));
+        if (!mode.equals(PeerThreads.kind())) {
+            System.out.println(mode + " run skipped, virtual threads need Java 21");
+            return;
+        }
+        System.gc();
+        long baseKb = residentKb();
+
+        // Sockets come from channels like in the peer, so the transports can use them the same way
+        ServerSocketChannel server = ServerSocketChannel.open();
+        server.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), connectionNum);
+        int port = ((InetSocketAddress)server.getLocalAddress()).getPort();
+        Thread acceptor = PeerThreads.start(() -> {
+            try {
+                for (int i = 0; i < connectionNum; i++) {
+                    Socket socket = server.accept().socket();
+                    PeerThreads.start(() -> serve(socket), "server-" + i, true);
+                }
+            }
+            catch (IOException ignored) {
+            }
+        }, "listener", true);
+
+        CountDownLatch ready = new CountDownLatch(connectionNum), start = new CountDownLatch(1), done = new CountDownLatch(connectionNum);
+        AtomicLong messages = new AtomicLong();
+        long setupStart = System.nanoTime();
+        for (int i = 0; i < connectionNum; i++) {
+            Socket socket = SocketChannel.open(new InetSocketAddress(InetAddress.getLoopbackAddress(), port)).socket();
+            PeerThreads.start(() -> ping(socket, roundTrips, ready, start, done, messages), "client-" + i, true);
+        }
+        acceptor.join();
+        ready.await();
+        long setupNanos = System.nanoTime() - setupStart;
+
+        // Every connection, its two handlers and its two writers exist now, measure before the traffic starts
+        System.gc();
+        Runtime runtime = Runtime.getRuntime();
+        long heapKb = (runtime.totalMemory() - runtime.freeMemory()) >> 10;
+        long rssKb = residentKb();
+
+        long trafficStart = System.nanoTime();
+        start.countDown();
+        done.await();
+        long trafficNanos = System.nanoTime() - trafficStart;
+        server.close();
+
+        System.out.printf("%-9s %6d connections   setup %8.1f ms   %10.0f round trips/s   rss +%7.1f MB (%.1f kB per connection)   heap %7.1f MB%n",
+                PeerThreads.kind(), connectionNum, setupNanos / 1e6, messages.get() / (trafficNanos / 1e9), (rssKb - baseKb) / 1024.0,
+                (double)(rssKb - baseKb) / connectionNum, heapKb / 1024.0);
+    }
+
+    public static void main(String[] args) throws Exception {
+        int connectionNum = args.length > 0 ? Integer.parseInt(args[0]) : 5000;
+        int roundTrips = args.length > 1 ? Integer.parseInt(args[1]) : 20;
+
+        // Child run of one mode, the writer threads of the transports aren't daemon threads
+        if (args.length > 2) {
+            run(args[2], connectionNum, roundTrips);
+            System.exit(0);
+        }
+
+        String java = ProcessHandle.current().info().command().orElse("java");
+        for (String mode : new String[]{"platform", "virtual"}) {
+            Process child = new ProcessBuilder(java, "-cp", System.getProperty("java.class.path"), "ConnectionBenchmark",
+                    String.valueOf(connectionNum), String.valueOf(roundTrips), mode).inheritIO().start();
+            if (child.waitFor() != 0) System.out.println(mode + " run failed, is the open file limit above " + 2 * connectionNum + "?");
+        }
+    }
+}
@@ -0,0 +1,204 @@
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.stream.*;
+
+/**
+ * @description Write and read every piece of a file through each storage backend, in order and in random order, and
+ * report the throughput and the latency percentiles of single piece operations. Writes go into a new file and
+ * include the final flush, reads go over the file just written, so they mostly come from the page cache unless it
+ * is dropped in between. The backends writing files run once with sparse and once with fully reserved files, and
+ * the time taken to open the storage, which is when the file gets its length, is reported for both. Last, a sparse
+ * file of more than 4 GB is written and read around the places where the memory mapping of MappedStorage is split
+ * into windows, once writable and once read-only, and every byte read is checked.
+ * Usage: java -cp bench:peer_1001 StorageBenchmark [directory] [file MB] [piece size] [backends]
+ */
+public class StorageBenchmark {
+    private final Path dir;
+    private final long fileSize;
+    private final int pieceSize, pieceNum;
+    private final byte[] scratch;
+
+    private StorageBenchmark(Path dir, long fileSize, int pieceSize) {
+        this.dir = dir;
+        this.fileSize = fileSize;
+        this.pieceSize = pieceSize;
+        this.pieceNum = (int)((fileSize + pieceSize - 1) / pieceSize);
+        this.scratch = new byte[pieceSize];
+    }
+
+    /**
+     * Piece indexes in order, or shuffled with a fixed seed
+     */
+    private int[] order(boolean random) {
+        List<Integer> indexes = IntStream.range(0, pieceNum).boxed().collect(Collectors.toList());
+        if (random) Collections.shuffle(indexes, new Random(1));
+        return indexes.stream().mapToInt(Integer::intValue).toArray();
+    }
+
+    /**
+     * Write every piece into a new file
+     * @param latencies Filled with the nanoseconds of each write
+     * @return Elapsed nanoseconds including the flush
+     */
+    private long write(PieceStorage storage, int[] order, long[] latencies) {
+        ByteBuffer content = ByteBuffer.allocate(pieceSize);
+        new Random(2).nextBytes(content.array());
+        long startTime = System.nanoTime();
+        for (int i = 0; i < order.length; i++) {
+            long opStart = System.nanoTime();
+            content.clear().limit(storage.pieceLen(order[i]));
+            content.putInt(0, order[i]);
+            storage.write(order[i], content);
+            latencies[i] = System.nanoTime() - opStart;
+        }
+        storage.flush();
+        return System.nanoTime() - startTime;
+    }
+
+    /**
+     * Read every piece, copying it out so every byte is really read
+     * @param latencies Filled with the nanoseconds of each read
+     * @return Elapsed nanoseconds
+     */
+    private long read(PieceStorage storage, int[] order, long[] latencies) {
+        long startTime = System.nanoTime();
+        for (int i = 0; i < order.length; i++) {
+            long opStart = System.nanoTime();
+            ByteBuffer piece = storage.piece(order[i]);
+            int len = piece.remaining();
+            piece.get(scratch, 0, len);
+            if (ByteBuffer.wrap(scratch).getInt(0) != order[i]) throw new IllegalStateException("Piece " + order[i] + " reads back wrong");
+            latencies[i] = System.nanoTime() - opStart;
+        }
+        return System.nanoTime() - startTime;
+    }
+
+    private void report(String kind, String operation, long elapsedNanos, long[] latencies, boolean print) {
+        if (!print) return;
+        long[] sorted = latencies.clone();
+        Arrays.sort(sorted);
+        System.out.printf("%-14s %-17s %9.1f MB/s   p50 %8.1f us   p99 %8.1f us   p99.9 %8.1f us%n", kind, operation,
+                fileSize / (elapsedNanos / 1e9) / 1e6, percentile(sorted, 0.5), percentile(sorted, 0.99), percentile(sorted, 0.999));
+    }
+
+    private static double percentile(long[] sorted, double fraction) {
+        return sorted[Math.min(sorted.length - 1, (int)(sorted.length * fraction))] / 1e3;
+    }
+
+    /**
+     * Write and read the file in order, then write a new one and read it in random order
+     * @param reserve "true" to reserve every block of the file when it is opened
+     * @param print "false" for a warm-up run
+     */
+    private void run(String kind, boolean reserve, boolean print) throws Exception {
+        Path path = dir.resolve("storage-benchmark-" + kind);
+        String name = kind.equals("heap") ? kind : kind + (reserve ? "/full" : "/sparse");
+        FileLayout layout = FileLayout.single(fileSize);
+        long[] latencies = new long[pieceNum];
+        String[] names = {"sequential", "random"};
+        for (int pass = 0; pass < 2; pass++) {
+            int[] order = order(pass == 1);
+            Files.deleteIfExists(path);
+            long openStart = System.nanoTime();
+            try (PieceStorage storage = PieceStorage.open(kind, path, layout, pieceSize, true, reserve)) {
+                if (print) System.out.printf("%-14s %-17s %9.1f ms%n", name, "open", (System.nanoTime() - openStart) / 1e6);
+                report(name, names[pass] + " write", write(storage, order, latencies), latencies, print);
+                report(name, names[pass] + " read", read(storage, order, latencies), latencies, print);
+            }
+        }
+        Files.deleteIfExists(path);
+    }
+
+    /**
+     * Content of the byte at a position of the piece space, so any byte read can be checked wherever it comes from
+     */
+    private static byte expected(long position) {
+        return (byte)(position * 31 + (position >>> 32) * 17 + 7);
+    }
+
+    /**
+     * Write the pieces on both sides of every 2 GB mapping window boundary of a sparse file spanning three windows,
+     * plus the first and the short last piece, then read them back and read regions crossing the boundaries, first
+     * through the writable storage and then through a read-only one like a seed opens
+     */
+    private void checkLargeFile(String kind) throws Exception {
+        Path path = dir.resolve("storage-benchmark-large-" + kind);
+        long windowLen = (long)Math.max(1, Integer.MAX_VALUE / pieceSize) * pieceSize;
+        FileLayout layout = FileLayout.single(fileSize);
+        Set<Integer> indexes = new TreeSet<>(Arrays.asList(0, pieceNum - 1));
+        for (long boundary = windowLen; boundary < fileSize; boundary += windowLen) {
+            indexes.add((int)(boundary / pieceSize) - 1);
+            indexes.add((int)(boundary / pieceSize));
+        }
+
+        Files.deleteIfExists(path);
+        long startTime = System.nanoTime();
+        try (PieceStorage storage = PieceStorage.open(kind, path, layout, pieceSize, true, false)) {
+            for (int index : indexes) {
+                ByteBuffer content = ByteBuffer.allocate(storage.pieceLen(index));
+                for (int i = 0; i < content.limit(); i++) content.put(i, expected((long)index * pieceSize + i));
+                storage.write(index, content);
+            }
+            storage.flush();
+            verify(storage, indexes, windowLen);
+        }
+
+        // The bytes must also be where they belong in the file, not only read back the way they were written
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            for (int index : indexes) {
+                ByteBuffer content = ByteBuffer.allocate((int)Math.min(pieceSize, fileSize - (long)index * pieceSize));
+                while (content.hasRemaining()) channel.read(content, (long)index * pieceSize + content.position());
+                check(content.flip(), (long)index * pieceSize);
+            }
+        }
+        try (PieceStorage storage = PieceStorage.open(kind, path, layout, pieceSize, false, false)) {
+            verify(storage, indexes, windowLen);
+        }
+        Files.deleteIfExists(path);
+        System.out.printf("%-14s %-17s %9.1f ms   %.1f GB sparse, %d pieces around %d window boundaries checked%n", kind,
+                "large file", (System.nanoTime() - startTime) / 1e6, fileSize / 1e9, indexes.size(), (fileSize - 1) / windowLen);
+    }
+
+    /**
+     * Read the written pieces and a region across every window boundary, and check every byte
+     */
+    private void verify(PieceStorage storage, Set<Integer> indexes, long windowLen) {
+        for (int index : indexes) check(storage.piece(index), (long)index * pieceSize);
+        for (long boundary = windowLen; boundary < fileSize; boundary += windowLen) {
+            check(storage.region(boundary - 100, 200), boundary - 100);
+        }
+    }
+
+    private static void check(ByteBuffer buffer, long position) {
+        for (int i = 0; i < buffer.remaining(); i++) {
+            if (buffer.get(buffer.position() + i) != expected(position + i)) {
+                throw new IllegalStateException("Byte " + (position + i) + " reads back wrong");
+            }
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        Path dir = Paths.get(args.length > 0 ? args[0] : ".");
+        long fileSize = (args.length > 1 ? Long.parseLong(args[1]) : 256) << 20;
+        int pieceSize = args.length > 2 ? Integer.parseInt(args[2]) : 262144;
+        String[] kinds = args.length > 3 ? args[3].split(",") : new String[]{"heap", "mmap", "channel"};
+
+        StorageBenchmark benchmark = new StorageBenchmark(dir, fileSize, pieceSize);
+        System.out.println("File " + fileSize + " bytes in " + benchmark.pieceNum + " pieces of " + pieceSize + " bytes under " + dir.toAbsolutePath());
+
+        // Warm up every backend on a small file first
+        for (String kind : kinds) new StorageBenchmark(dir, 16L * pieceSize, pieceSize).run(kind, false, false);
+        for (String kind : kinds) {
+            benchmark.run(kind, false, true);
+            if (!kind.equals("heap")) benchmark.run(kind, true, true);
+        }
+
+        // Past 4 GB, with a short last piece, the heap can't hold it
+        StorageBenchmark large = new StorageBenchmark(dir, (1L << 32) / pieceSize * pieceSize + pieceSize / 3, pieceSize);
+        for (String kind : kinds) {
+            if (!kind.equals("heap")) large.checkLargeFile(kind);
+        }
+    }
+}
@@ -0,0 +1,135 @@
+import java.io.*;
+import java.net.*;
+import java.nio.*;
+import java.util.concurrent.atomic.*;
+
+/**
+ * @description Push PIECE and HAVE frames through a loopback connection with FrameTransport, once with the object
+ * stream framing the original peers use and once with negotiated raw framing. The connection goes through a relay
+ * which counts the bytes that actually travel on the wire.
+ */
+public class TransportBenchmark {
+    private static final int PIECE_SIZE = 16384;
+
+    /**
+     * Forward bytes from one socket to another and count them
+     */
+    private static class Relay implements Runnable {
+        private final InputStream in;
+        private final OutputStream out;
+        private final AtomicLong counter;
+
+        Relay(Socket from, Socket to, AtomicLong counter) throws IOException {
+            this.in = from.getInputStream();
+            this.out = to.getOutputStream();
+            this.counter = counter;
+        }
+
+        @Override
+        public void run() {
+            byte[] buffer = new byte[65536];
+            try {
+                int len;
+                while ((len = in.read(buffer)) != -1) {
+                    out.write(buffer, 0, len);
+                    counter.addAndGet(len);
+                }
+                out.close();
+            }
+            catch (IOException ignored) {
+            }
+        }
+    }
+
+    /**
+     * Exchange handshake messages and settle the framing, like a peer does: the handshake goes out through send(),
+     * which writes it directly as the writer thread only starts with negotiate()
+     */
+    private static void handshake(FrameTransport transport, int peerId, int extensions) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(MessageCodec.HANDSHAKE_LEN);
+        transport.send(MessageCodec.encodeHandshake(buffer, peerId, extensions), (ByteBuffer)null);
+        buffer.clear();
+        transport.readFully(buffer.array(), 0, MessageCodec.HANDSHAKE_LEN);
+        transport.negotiate(extensions & MessageCodec.decodeHandshakeExtensions(buffer));
+    }
+
+    /**
+     * Send "pieceNum" pieces, each followed by a HAVE message, like a peer serving requests does
+     * @return Wire bytes from sender to receiver and the elapsed time in nanoseconds
+     */
+    private static long[] run(int pieceNum, int extensions) throws Exception {
+        ServerSocket receiverSocket = new ServerSocket(0), relaySocket = new ServerSocket(0);
+        AtomicLong wireBytes = new AtomicLong(), backBytes = new AtomicLong();
+
+        // Relay between sender and receiver
+        Thread relayThread = new Thread(() -> {
+            try {
+                Socket fromSender = relaySocket.accept();
+                Socket toReceiver = new Socket("127.0.0.1", receiverSocket.getLocalPort());
+                new Thread(new Relay(fromSender, toReceiver, wireBytes)).start();
+                new Thread(new Relay(toReceiver, fromSender, backBytes)).start();
+            }
+            catch (IOException e) {
+                e.printStackTrace();
+            }
+        });
+        relayThread.start();
+
+        // Receiver reads every frame completely
+        long[] elapsed = new long[1];
+        Thread receiverThread = new Thread(() -> {
+            try {
+                FrameTransport transport = new FrameTransport(receiverSocket.accept(), false, Long.MAX_VALUE, 0);
+                handshake(transport, 2, extensions);
+                byte[] buffer = new byte[MessageCodec.INDEX_LEN + PIECE_SIZE];
+                long startTime = System.nanoTime();
+                for (int frames = 0; frames < pieceNum * 2; frames++) {
+                    transport.readFully(buffer, 0, MessageCodec.LENGTH_FIELD_LEN);
+                    int len = ByteBuffer.wrap(buffer).getInt();
+                    transport.readByte();
+                    transport.readFully(buffer, 0, len - 1);
+                }
+                elapsed[0] = System.nanoTime() - startTime;
+                transport.close();
+            }
+            catch (IOException e) {
+                e.printStackTrace();
+            }
+        });
+        receiverThread.start();
+
+        FrameTransport transport = new FrameTransport(new Socket("127.0.0.1", relaySocket.getLocalPort()), true, Long.MAX_VALUE, 0);
+        handshake(transport, 1, extensions);
+        ByteBuffer frame = ByteBuffer.allocate(MessageCodec.HEADER_LEN + MessageCodec.INDEX_LEN);
+        byte[] content = new byte[PIECE_SIZE];
+        for (int i = 0; i < pieceNum; i++) {
+            frame.clear();
+            transport.send(MessageCodec.encodePieceHeader(frame, i, content.length), content);
+            frame.clear();
+            transport.send(MessageCodec.encodeHave(frame, i), (ByteBuffer)null);
+        }
+        receiverThread.join();
+        transport.close();
+        receiverSocket.close();
+        relaySocket.close();
+        return new long[]{wireBytes.get(), elapsed[0]};
+    }
+
+    public static void main(String[] args) throws Exception {
+        int pieceNum = args.length > 0 ? Integer.parseInt(args[0]) : 20000;
+        long frameBytes = 32 + (long)pieceNum * (MessageCodec.HEADER_LEN + MessageCodec.INDEX_LEN + PIECE_SIZE + MessageCodec.HEADER_LEN + MessageCodec.INDEX_LEN);
+
+        // Warm up both paths
+        run(pieceNum / 10, 0);
+        run(pieceNum / 10, 1 << MessageCodec.EXT_RAW_FRAMING);
+
+        System.out.println("Frame bytes per run (handshake + PIECE + HAVE): " + frameBytes);
+        String[] names = {"object streams", "raw framing"};
+        int[] extensions = {0, 1 << MessageCodec.EXT_RAW_FRAMING};
+        for (int i = 0; i < names.length; i++) {
+            long[] result = run(pieceNum, extensions[i]);
+            System.out.printf("%-15s wire bytes: %d (overhead %.3f%%), throughput: %.1f MB/s%n", names[i], result[0],
+                    (result[0] - frameBytes) * 100.0 / frameBytes, frameBytes / (result[1] / 1e9) / 1e6);
+        }
+    }
+}
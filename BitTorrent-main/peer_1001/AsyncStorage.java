@@ -0,0 +1,79 @@
+import java.nio.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.function.*;
+
+/**
+ * @description Completion based access to the storage, so a slow disk holds up a pool of storage threads instead of
+ * the connections. The thread which received a piece or a request only submits the write or the read and goes on
+ * with the network, the work is done on a storage thread which then runs the completion, storing the piece and
+ * telling the neighbors, or sending it. Waiting work isn't bounded, the pieces waiting to be written are bounded by
+ * the requests in flight already. A failing disk access or completion is handed to the failure handler instead of
+ * disappearing into the pool.
+ */
+public class AsyncStorage {
+    private static final LongAdder writes = Metrics.counter("storageWrites");
+    private static final LongAdder reads = Metrics.counter("storageReads");
+    private static final LongAdder storageMicros = Metrics.counter("storageMicros");
+    private static final LongAdder tasks = Metrics.counter("storageTasks");
+
+    static {
+        Metrics.ratio("storageMicrosPerTask", "storageMicros", "storageTasks");
+    }
+
+    private final PieceStorage storage;
+    private final int pieceSize;
+    private final Consumer<RuntimeException> failed;
+    private final ThreadPoolExecutor pool;
+
+    /**
+     * @param threadNum Number of storage threads
+     * @param failed Called on the storage thread with what a read, a write or a completion threw
+     */
+    public AsyncStorage(PieceStorage storage, int pieceSize, int threadNum, Consumer<RuntimeException> failed) {
+        this.storage = storage;
+        this.pieceSize = pieceSize;
+        this.failed = failed;
+        this.pool = new ThreadPoolExecutor(threadNum, threadNum, 0, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<>(),
+                PeerThreads.factory("storage", true));
+        Metrics.gauge("storageQueued", () -> pool.getQueue().size());
+    }
+
+    /**
+     * Write a complete piece into the file
+     * @param content Content of the piece from its position to its limit, it must not change until "done" runs
+     * @param done Run on the storage thread once the piece is in the file
+     */
+    public void write(int pieceIndex, ByteBuffer content, Runnable done) {
+        writes.increment();
+        execute(() -> storage.write(pieceIndex, content), done);
+    }
+
+    /**
+     * Bring a part of a piece into memory from the disk
+     * @param done Run on the storage thread once the part can be taken from the storage without waiting for the disk
+     */
+    public void read(int pieceIndex, int offset, int len, Runnable done) {
+        reads.increment();
+        execute(() -> storage.load((long)pieceIndex * pieceSize + offset, len), done);
+    }
+
+    private void execute(Runnable work, Runnable done) {
+        long submitTime = System.nanoTime();
+        pool.execute(() -> {
+            try {
+                work.run();
+                storageMicros.add(TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - submitTime));
+                tasks.increment();
+                done.run();
+            }
+            catch (RuntimeException e) {
+                failed.accept(e);
+            }
+        });
+    }
+
+    public void shutdown() {
+        pool.shutdownNow();
+    }
+}
@@ -0,0 +1,145 @@
+import java.nio.*;
+import java.util.*;
+import java.util.function.*;
+
+/**
+ * @description Set of pieces a peer has, one bit per piece packed into 64-bit words. Bit j of word i stands for
+ * piece 64 * i + j, and the bits past the last piece are always 0, so counting and comparing work a word at a time.
+ * Bits are set by the thread owning the bitfield, the connection of that neighbor or the one storing a piece for
+ * self, while any thread may read them.
+ */
+public class Bitfield {
+    private final long[] words;
+    private final int length;
+
+    /**
+     * @param length Number of pieces, all of them missing
+     */
+    public Bitfield(int length) {
+        this.words = new long[(length + 63) >>> 6];
+        this.length = length;
+    }
+
+    /**
+     * Bitfield with every piece present
+     */
+    public static Bitfield full(int length) {
+        Bitfield bitfield = new Bitfield(length);
+        Arrays.fill(bitfield.words, -1L);
+        bitfield.clearTail();
+        return bitfield;
+    }
+
+    /**
+     * Number of pieces, present or not
+     */
+    public int length() {
+        return length;
+    }
+
+    public boolean get(int index) {
+        return (words[index >>> 6] & 1L << index) != 0;
+    }
+
+    /**
+     * Mark a piece as present
+     * @return "true" if the piece wasn't present before
+     */
+    public synchronized boolean set(int index) {
+        long word = words[index >>> 6];
+        words[index >>> 6] = word | 1L << index;
+        return (word & 1L << index) == 0;
+    }
+
+    /**
+     * Mark a piece as missing
+     */
+    public synchronized void clear(int index) {
+        words[index >>> 6] &= ~(1L << index);
+    }
+
+    /**
+     * Number of pieces present
+     */
+    public int cardinality() {
+        int count = 0;
+        for (long word : words) count += Long.bitCount(word);
+        return count;
+    }
+
+    /**
+     * Check if every piece is present
+     */
+    public boolean isComplete() {
+        return cardinality() == length;
+    }
+
+    /**
+     * Check if this bitfield has some piece that another one lacks
+     */
+    public boolean hasAnyNotIn(Bitfield other) {
+        for (int i = 0; i < words.length; i++) {
+            if ((words[i] & ~other.words[i]) != 0) return true;
+        }
+        return false;
+    }
+
+    /**
+     * Pick a piece present in this bitfield and missing in another one, without listing them. The search goes
+     * through the words from the one holding "start" and wraps around, so callers starting at random places spread
+     * their picks over the pieces
+     * @param skip Pieces not to be picked even though they qualify
+     * @return Index of the piece, or -1 if there is none
+     */
+    public int pickNotIn(Bitfield other, int start, IntPredicate skip) {
+        for (int n = 0, i = start >>> 6; n < words.length; n++, i = i + 1 == words.length ? 0 : i + 1) {
+            for (long word = words[i] & ~other.words[i]; word != 0; word &= word - 1) {
+                int index = i << 6 | Long.numberOfTrailingZeros(word);
+                if (!skip.test(index)) return index;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Put the bitfield in the BITFIELD wire format, where the highest bit of the first byte stands for piece 0.
+     * Read as a big-endian long, 8 bytes of it are exactly a word with its bits reversed
+     */
+    public ByteBuffer writeTo(ByteBuffer dst) {
+        int byteLen = MessageCodec.bitfieldPayloadLen(length), i = 0;
+        for (; (i + 1) << 3 <= byteLen; i++) dst.putLong(Long.reverse(words[i]));
+        long word = Long.reverse(words.length > i ? words[i] : 0);
+        for (int j = i << 3; j < byteLen; j++, word <<= 8) dst.put((byte)(word >>> 56));
+        return dst;
+    }
+
+    /**
+     * Replace the bitfield with one in the BITFIELD wire format, bits past the last piece are ignored
+     */
+    public synchronized Bitfield readFrom(ByteBuffer src) {
+        int byteLen = MessageCodec.bitfieldPayloadLen(length), i = 0;
+        for (; (i + 1) << 3 <= byteLen; i++) words[i] = Long.reverse(src.getLong());
+        long word = 0;
+        for (int j = i << 3, shift = 56; j < byteLen; j++, shift -= 8) word |= (src.get() & 0xFFL) << shift;
+        if (i < words.length) words[i] = Long.reverse(word);
+        clearTail();
+        return this;
+    }
+
+    /**
+     * Clear the bits past the last piece
+     */
+    private void clearTail() {
+        if ((length & 63) != 0) words[words.length - 1] &= -1L >>> (64 - (length & 63));
+    }
+
+    /**
+     * List of 0 and 1 for every piece, like "[1, 0, 1]"
+     */
+    @Override
+    public String toString() {
+        StringBuilder content = new StringBuilder("[");
+        for (int i = 0; i < length; i++) content.append(i == 0 ? "" : ", ").append(get(i) ? 1 : 0);
+        return content.append(']').toString();
+    }
+}
@@ -0,0 +1,111 @@
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.file.*;
+import java.util.concurrent.atomic.*;
+
+/**
+ * @description The shared content kept on the heap, one array per piece, like the peers kept it originally. A seed
+ * reads its whole content at startup, a leecher touches no file until every piece is there and then writes the
+ * files out under the partial name before renaming them. Nothing downloaded survives a restart, and the content has
+ * to fit in the heap.
+ */
+public class HeapStorage extends LayoutStorage {
+    private final AtomicReferenceArray<ByteBuffer> pieces;
+
+    public HeapStorage(Path path, FileLayout layout, int pieceSize, boolean writable) throws IOException {
+        super(path, layout, pieceSize, writable, false);
+        pieces = new AtomicReferenceArray<>((int)((fileSize + pieceSize - 1) / pieceSize));
+        if (!writable) readFiles();
+    }
+
+    @Override
+    protected Segment open(Path filePath, FileLayout.Entry entry, boolean writable, boolean single) throws IOException {
+        if (!writable && Files.size(filePath) < entry.length) {
+            throw new EOFException(filePath + " is shorter than " + entry.length + " bytes");
+        }
+        return new Segment(entry.start, entry.length, null);
+    }
+
+    /**
+     * Read every file into the pieces, in the order they are laid out
+     */
+    private void readFiles() throws IOException {
+        for (int i = 0; i < pieces.length(); i++) pieces.set(i, ByteBuffer.allocate(pieceLen(i)));
+        for (FileLayout.Entry entry : layout.entries()) {
+            try (FileChannel channel = FileChannel.open(FileLayout.resolve(path, entry), StandardOpenOption.READ)) {
+                for (long position = entry.start; position < entry.start + entry.length; ) {
+                    ByteBuffer piece = pieces.get((int)(position / pieceSize)).duplicate();
+                    piece.position((int)(position % pieceSize));
+                    piece.limit((int)Math.min(piece.limit(), piece.position() + entry.start + entry.length - position));
+                    int count = channel.read(piece, position - entry.start);
+                    if (count < 0) throw new EOFException(path + " ends before " + position);
+                    position += count;
+                }
+            }
+        }
+    }
+
+    /**
+     * Write the pieces into the files under the current name, every file of the layout is created
+     */
+    private void writeFiles() throws IOException {
+        for (FileLayout.Entry entry : layout.entries()) {
+            Path filePath = FileLayout.resolve(path, entry);
+            if (filePath.getParent() != null) Files.createDirectories(filePath.getParent());
+            try (FileChannel channel = FileChannel.open(filePath, StandardOpenOption.WRITE, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                for (long position = entry.start; position < entry.start + entry.length; ) {
+                    int len = (int)Math.min(pieceSize - position % pieceSize, entry.start + entry.length - position);
+                    ByteBuffer region = region(position, len);
+                    while (region.hasRemaining()) channel.write(region, position + region.position() - entry.start);
+                    position += len;
+                }
+                channel.force(false);
+            }
+        }
+    }
+
+    @Override
+    public ByteBuffer region(long position, int len) {
+        int offset = (int)(position % pieceSize);
+        ByteBuffer piece = pieces.get((int)(position / pieceSize)).duplicate();
+        if (offset + len <= piece.limit()) return piece.limit(offset + len).position(offset).slice();
+
+        ByteBuffer copy = ByteBuffer.allocate(len);
+        while (copy.hasRemaining()) {
+            long at = position + copy.position();
+            piece = pieces.get((int)(at / pieceSize)).duplicate();
+            piece.position((int)(at % pieceSize)).limit(Math.min(piece.limit(), piece.position() + copy.remaining()));
+            copy.put(piece);
+        }
+        return copy.flip();
+    }
+
+    @Override
+    public void write(int pieceIndex, ByteBuffer content) {
+        pieces.set(pieceIndex, ByteBuffer.allocate(content.remaining()).put(content.duplicate()).flip());
+    }
+
+    /**
+     * Nothing is written before the content is complete
+     */
+    @Override
+    public void flush() {
+    }
+
+    /**
+     * Write the files out, then rename them like the other backends
+     */
+    @Override
+    public void moveTo(Path target) throws IOException {
+        moveLock.lock();
+        try {
+            if (path.equals(target)) return;
+            writeFiles();
+            super.moveTo(target);
+        }
+        finally {
+            moveLock.unlock();
+        }
+    }
+}
@@ -0,0 +1,134 @@
+import java.nio.*;
+import java.util.*;
+import java.util.concurrent.atomic.*;
+
+/**
+ * @description Off-heap copies of the pieces neighbors ask for most, kept within a byte budget between the request
+ * handling and the storage, so that a seed serving the same pieces to many neighbors doesn't go back to the disk
+ * for each of them. Pieces are evicted least recently used first, and a TinyLFU filter decides whether a missing
+ * piece is worth the room at all: it is only cached if it has been asked for more often lately than the piece it
+ * would evict, so a scan over rarely wanted pieces can't flush the popular ones. Evicted copies are not reused but
+ * left to the garbage collector, because messages still queued for sending may point into them.
+ */
+public class PieceCache {
+    private static final LongAdder requests = Metrics.counter("pieceCacheRequests");
+    private static final LongAdder hits = Metrics.counter("pieceCacheHits");
+    private static final LongAdder evictions = Metrics.counter("pieceCacheEvictions");
+    private static final LongAdder rejections = Metrics.counter("pieceCacheRejections");
+
+    static {
+        Metrics.ratio("pieceCacheHitRatio", "pieceCacheHits", "pieceCacheRequests");
+    }
+
+    private final PieceStorage storage;
+    private final long capacity;
+    private final LinkedHashMap<Integer, ByteBuffer> pieces = new LinkedHashMap<>(16, 0.75f, true);
+    private final FrequencySketch sketch;
+    private long usedBytes = 0;
+
+    /**
+     * @param capacity Most bytes of piece copies held at once
+     */
+    public PieceCache(PieceStorage storage, long capacity, int pieceSize) {
+        this.storage = storage;
+        this.capacity = capacity;
+        this.sketch = new FrequencySketch((int)Math.min(1 << 24, Math.max(16, capacity / pieceSize)));
+        Metrics.gauge("pieceCacheBytes", this::usedBytes);
+    }
+
+    private synchronized long usedBytes() {
+        return usedBytes;
+    }
+
+    /**
+     * Get a piece for sending, from the cache if it is there, otherwise copied into the cache if it is admitted, or
+     * else straight from the storage
+     * @return Buffer over the whole piece, from 0 to its length, of the caller's own
+     */
+    public ByteBuffer get(int pieceIndex) {
+        requests.increment();
+        int len = storage.pieceLen(pieceIndex);
+        boolean admitted;
+        synchronized (this) {
+            sketch.increment(pieceIndex);
+            ByteBuffer cached = pieces.get(pieceIndex);
+            if (cached != null) {
+                hits.increment();
+                return cached.duplicate();
+            }
+            admitted = admits(pieceIndex, len);
+        }
+
+        // Read and copy outside the lock, the piece may have to come from the disk
+        if (!admitted) {
+            rejections.increment();
+            return storage.piece(pieceIndex);
+        }
+        ByteBuffer copy = ByteBuffer.allocateDirect(len).put(storage.piece(pieceIndex)).flip();
+        synchronized (this) {
+            ByteBuffer cached = pieces.get(pieceIndex);
+            if (cached != null) return cached.duplicate();
+            while (usedBytes + len > capacity && !pieces.isEmpty()) {
+                Iterator<ByteBuffer> eldest = pieces.values().iterator();
+                usedBytes -= eldest.next().capacity();
+                eldest.remove();
+                evictions.increment();
+            }
+            pieces.put(pieceIndex, copy);
+            usedBytes += len;
+        }
+        return copy.duplicate();
+    }
+
+    /**
+     * Check if a missing piece gets room, either there is free room or it is wanted more than the eviction victim
+     */
+    private boolean admits(int pieceIndex, int len) {
+        if (len > capacity) return false;
+        if (usedBytes + len <= capacity) return true;
+        int victim = pieces.keySet().iterator().next();
+        return sketch.frequency(pieceIndex) > sketch.frequency(victim);
+    }
+
+    /**
+     * @description Count-min sketch of how often pieces are asked for, four counters per piece saturating at 15
+     * spread over a table by four hashes, the smallest of them being the estimate. Every counter is halved once the
+     * table has taken ten times its width in increments, so the counts follow what is popular lately
+     */
+    private static class FrequencySketch {
+        private static final int[] SEEDS = {0x9E3779B9, 0x85EBCA6B, 0xC2B2AE35, 0x27D4EB2F};
+
+        private final byte[] table;
+        private final int mask, resetSize;
+        private int additions = 0;
+
+        FrequencySketch(int expected) {
+            int width = Integer.highestOneBit(Math.max(16, expected * 2 - 1)) << 1;
+            table = new byte[width];
+            mask = width - 1;
+            resetSize = width * 10;
+        }
+
+        private int slot(int key, int row) {
+            int hash = (key + row) * SEEDS[row];
+            return (hash ^ hash >>> 16) & mask;
+        }
+
+        int frequency(int key) {
+            int frequency = Integer.MAX_VALUE;
+            for (int row = 0; row < SEEDS.length; row++) frequency = Math.min(frequency, table[slot(key, row)]);
+            return frequency;
+        }
+
+        void increment(int key) {
+            for (int row = 0; row < SEEDS.length; row++) {
+                int slot = slot(key, row);
+                if (table[slot] < 15) table[slot]++;
+            }
+            if (++additions >= resetSize) {
+                for (int i = 0; i < table.length; i++) table[i] >>= 1;
+                additions /= 2;
+            }
+        }
+    }
+}
@@ -0,0 +1,155 @@
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.file.*;
+import java.security.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * @description SHA-256 of every piece of the shared file, the metadata a downloaded piece is checked against
+ * before it is kept. The file holds a header with the file size and the piece size it was made for, then the
+ * 32-byte hashes of the pieces in order.
+ */
+public class PieceHashes {
+    public static final String ALGORITHM = "SHA-256";
+    public static final int HASH_LEN = 32;
+    private static final int MAGIC = 0x50485348; // "PHSH"
+    private static final int HEADER_LEN = 16;
+
+    // Bytes of pieces below which a range is hashed by one task instead of being split further
+    private static final long TASK_BYTES = 8 << 20;
+
+    // Digests are reused by every thread checking pieces
+    private static final ThreadLocal<MessageDigest> digest = ThreadLocal.withInitial(() -> {
+        try {
+            return MessageDigest.getInstance(ALGORITHM);
+        }
+        catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    });
+
+    private final long fileSize;
+    private final int pieceSize, pieceNum;
+    private final byte[] hashes;
+
+    public PieceHashes(long fileSize, int pieceSize) {
+        this.fileSize = fileSize;
+        this.pieceSize = pieceSize;
+        this.pieceNum = (int)((fileSize + pieceSize - 1) / pieceSize);
+        this.hashes = new byte[pieceNum * HASH_LEN];
+    }
+
+    public long fileSize() {
+        return fileSize;
+    }
+
+    public int pieceSize() {
+        return pieceSize;
+    }
+
+    public int pieceNum() {
+        return pieceNum;
+    }
+
+    /**
+     * Hash of a piece from its position to its limit
+     */
+    public static byte[] hash(ByteBuffer piece) {
+        MessageDigest md = digest.get();
+        md.update(piece.duplicate());
+        return md.digest();
+    }
+
+    public void set(int pieceIndex, byte[] hash) {
+        System.arraycopy(hash, 0, hashes, pieceIndex * HASH_LEN, HASH_LEN);
+    }
+
+    /**
+     * Check a piece against its hash
+     * @param content Content of the piece from its position to its limit
+     */
+    public boolean matches(int pieceIndex, ByteBuffer content) {
+        byte[] hash = hash(content);
+        return Arrays.equals(hash, 0, HASH_LEN, hashes, pieceIndex * HASH_LEN, (pieceIndex + 1) * HASH_LEN);
+    }
+
+    /**
+     * Hash every piece of the stored content on a fork/join pool. The piece space is split in halves until a range is
+     * small enough, and idle workers steal the halves still waiting, so all the workers stay busy to the end
+     */
+    public static PieceHashes compute(PieceStorage storage, long fileSize, int pieceSize, ForkJoinPool pool) {
+        PieceHashes pieceHashes = new PieceHashes(fileSize, pieceSize);
+        int minPieces = (int)Math.max(1, TASK_BYTES / pieceSize);
+        pool.invoke(new HashTask(storage, pieceHashes, 0, pieceHashes.pieceNum, minPieces));
+        return pieceHashes;
+    }
+
+    public static PieceHashes compute(PieceStorage storage, long fileSize, int pieceSize) {
+        return compute(storage, fileSize, pieceSize, ForkJoinPool.commonPool());
+    }
+
+    /**
+     * @description Hashing of the pieces from "first" up to "last", excluded
+     */
+    private static class HashTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final PieceStorage storage;
+        private final PieceHashes pieceHashes;
+        private final int first, last, minPieces;
+
+        HashTask(PieceStorage storage, PieceHashes pieceHashes, int first, int last, int minPieces) {
+            this.storage = storage;
+            this.pieceHashes = pieceHashes;
+            this.first = first;
+            this.last = last;
+            this.minPieces = minPieces;
+        }
+
+        @Override
+        protected void compute() {
+            if (last - first <= minPieces) {
+                for (int i = first; i < last; i++) pieceHashes.set(i, hash(storage.piece(i)));
+                return;
+            }
+            int middle = (first + last) >>> 1;
+            invokeAll(new HashTask(storage, pieceHashes, first, middle, minPieces), new HashTask(storage, pieceHashes, middle, last, minPieces));
+        }
+    }
+
+    public static PieceHashes read(Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_LEN);
+            readFully(channel, header, 0);
+            if (header.getInt(0) != MAGIC) throw new IOException(path + " is not a piece hash file");
+            PieceHashes pieceHashes = new PieceHashes(header.getLong(4), header.getInt(12));
+            readFully(channel, ByteBuffer.wrap(pieceHashes.hashes), HEADER_LEN);
+            return pieceHashes;
+        }
+    }
+
+    /**
+     * Write the hashes to a temporary file and rename it, so the file is never seen half written
+     */
+    public void write(Path path) throws IOException {
+        Path tmpPath = Paths.get(path + ".tmp");
+        try (FileChannel channel = FileChannel.open(tmpPath, StandardOpenOption.WRITE, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_LEN).putInt(MAGIC).putLong(fileSize).putInt(pieceSize);
+            header.flip();
+            ByteBuffer[] buffers = {header, ByteBuffer.wrap(hashes)};
+            while (buffers[1].hasRemaining()) channel.write(buffers);
+            channel.force(true);
+        }
+        Files.move(tmpPath, path, StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer dst, long position) throws IOException {
+        while (dst.hasRemaining()) {
+            int len = channel.read(dst, position);
+            if (len < 0) throw new EOFException("Piece hash file ends early");
+            position += len;
+        }
+    }
+}
@@ -0,0 +1,54 @@
+import java.nio.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.function.*;
+
+/**
+ * @description Pool of worker threads checking downloaded pieces against their hashes, so hashing runs on every
+ * core instead of holding up the connection a piece came from. The queue of waiting pieces is bounded: once it is
+ * full, the thread submitting a piece checks it itself, which slows down reading from the network instead of
+ * piling up piece buffers.
+ */
+public class PieceVerifier {
+    private static final LongAdder verified = Metrics.counter("piecesVerified");
+    private static final LongAdder failures = Metrics.counter("verifyFailures");
+    private static final LongAdder verifyMicros = Metrics.counter("verifyMicros");
+
+    static {
+        Metrics.ratio("verifyMicrosPerPiece", "verifyMicros", "piecesVerified");
+    }
+
+    private final PieceHashes hashes;
+    private final ThreadPoolExecutor pool;
+
+    /**
+     * @param threadNum Number of worker threads
+     * @param queueLen Most pieces waiting for a worker
+     */
+    public PieceVerifier(PieceHashes hashes, int threadNum, int queueLen) {
+        this.hashes = hashes;
+        this.pool = new ThreadPoolExecutor(threadNum, threadNum, 0, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<>(queueLen),
+                PeerThreads.factory("verifier", true), new ThreadPoolExecutor.CallerRunsPolicy());
+        Metrics.gauge("verifyQueued", () -> pool.getQueue().size());
+    }
+
+    /**
+     * Check a complete piece, the result is handed to a callback on the thread which checked it
+     * @param content Content of the piece from its position to its limit, it must not change until the callback runs
+     * @param done Called with "true" if the piece matches its hash
+     */
+    public void submit(int pieceIndex, ByteBuffer content, Consumer<Boolean> done) {
+        long submitTime = System.nanoTime();
+        pool.execute(() -> {
+            boolean valid = hashes.matches(pieceIndex, content);
+            verifyMicros.add(TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - submitTime));
+            verified.increment();
+            if (!valid) failures.increment();
+            done.accept(valid);
+        });
+    }
+
+    public void shutdown() {
+        pool.shutdownNow();
+    }
+}
@@ -1,9 +1,15 @@
 import java.io.*;
 import java.nio.*;
+import java.nio.channels.*;
+import java.nio.file.*;
 import java.text.*;
 import java.util.*;
 import java.net.*;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.concurrent.locks.*;
+import java.util.function.*;
+import java.util.stream.*;
 
 /**
  * @description Define peer in P2P network
@@ -17,22 +23,68 @@ public class peerProcess {
     private static int preferredNeighborNum;
     private static int unchokingInterval, optimisticUnchokingInterval;
     private static String fileName;
-    private static int fileSize, pieceSize;
+    private static String fileList; // Set when FileName is a directory, null for a single file
+    private static long fileSize; // Files past 2 GB are addressed with 64-bit offsets, a piece still fits in a buffer
+    private static int pieceSize;
+    private static int pipelineDepth; // 0 for sizing the window automatically
+    private static int blockSize;
 
     // For TCP connection
     private static int peerNum = 0;
     private static int serverConnectionNum = 0;
     private static Vector<Thread> threadList;
+    private static String networkEngine;
+    private static int reactorThreadNum;
+    private static long sendQueueBytes;
+    private static long coalesceNanos;
+    private static int haveBatchMillis;
+    private static boolean bufferDebug;
+    private static boolean resume, resumeVerify;
+    private static int resumeSyncMillis;
+    private static String hashFile;
+    private static int verifyThreads;
+    private static long pieceCacheBytes;
+    private static String storageKind;
+    private static String preallocate;
+    private static boolean useIoScheduler;
+    private static long ioSyncBytes;
+    private static int ioSyncMillis;
+    private static boolean useAsyncStorage;
+    private static int storageThreads;
+    private static boolean virtualThreads;
+    private static final ReentrantLock logLock = new ReentrantLock(); // Held over the log file, so not a monitor
+    private static ReactorEngine reactorEngine;
 
     // Message handling
-    private static Vector<byte[]> filePieces;
-    private static ConcurrentHashMap<Integer, boolean[]> peerBitfieldMap;
-    private static MessageHandler messageHandler;
+    private static PieceStorage storage;
+    private static ResumeJournal journal;
+    private static PieceCache pieceCache;
+    private static IoScheduler ioScheduler;
+    private static AsyncStorage asyncStorage;
+    private static BufferArena pieceArena;
+    private static PieceVerifier verifier;
+    private static ConcurrentHashMap<Integer, Bitfield> peerBitfieldMap;
+    private static int frameBufferLen;
+    private static ThreadLocal<ByteBuffer> sendBuffer;
+    private static int localExtensions;
     private static ConcurrentHashMap<Integer, Double> downloadRateMap;
     private static Set<Integer> interestNeighborSet, preferredNeighborsSet;
     private static Integer optimisticallyNeighbor;
-    private static ConcurrentHashMap<Integer, ObjectOutputStream> peerSocketMap;
-    private static Set<Integer> sentHavePieceSet;
+    private static ConcurrentHashMap<Integer, PeerConnection> peerSocketMap;
+    private static ConcurrentHashMap<Integer, PeerSession> sessionMap;
+    private static Bitfield sentHaveBitfield; // Pieces the neighbors have been told about
+    private static final AtomicBoolean fileCompleted = new AtomicBoolean(); // Set by the one thread storing the last piece
+    private static Set<Integer> inFlightPieceSet;
+    private static ConcurrentHashMap<Integer, PieceAssembly> assemblyMap;
+    private static Set<Integer> completingPieceSet; // Complete pieces being checked against their hash or written
+
+    // Bounds of an automatically sized request window, it holds as many requests as are answered in
+    // AUTO_PIPELINE_NANOS, at least AUTO_PIPELINE_MIN and no more than AUTO_PIPELINE_MAX_BYTES worth of content
+    private static final int AUTO_PIPELINE_MIN = 2, AUTO_PIPELINE_MAX_BYTES = 8 << 20;
+    private static final long AUTO_PIPELINE_NANOS = 500_000_000L;
+
+    // Time a connection closed by a neighbor waits for the other neighbors to tell that every peer is done
+    private static final long SHUTDOWN_GRACE_MILLIS = 2000;
 
     /**
      * Encapsulate peer information for TCP connection
@@ -61,15 +113,13 @@ public class peerProcess {
 
         @Override
         public void run(){
-            ObjectInputStream inputStream;
-            ObjectOutputStream outputStream;
+            FrameTransport transport;
 
             // Build TCP connection
             while (true) {
                 try {
-                    Socket requestSocket = new Socket(destPeer.address, destPeer.port);
-                    outputStream = new ObjectOutputStream((requestSocket.getOutputStream()));
-                    inputStream = new ObjectInputStream(requestSocket.getInputStream());
+                    Socket requestSocket = SocketChannel.open(new InetSocketAddress(destPeer.address, destPeer.port)).socket();
+                    transport = new FrameTransport(requestSocket, true, sendQueueBytes, coalesceNanos);
                     break;
                 }
                 catch (ConnectException e) {
@@ -79,162 +129,8 @@ public class peerProcess {
                 }
             }
 
-
             // Start send & receive messages
-            int payloadLen = 0;
-            char msgType = '0';
-            Set<Integer> requestedIndexSet = new HashSet<>();
-            boolean request = true;
-
-            // Handshake message
-            sendMessage(outputStream, messageHandler.generateHandshakeMessage(peerId)); // Send handshake message
-            int destPeerId = messageHandler.getPeerIdFromHandShakeMsg(receiveMessage(inputStream, 32)); // Receive handshake message from socket, get and store its peer Id
-            peerSocketMap.put(destPeerId, outputStream);
-            writeToLog("Peer " + peerId + " receives handshake message from Peer " + destPeerId, true);
-            writeToLog("Peer " + peerId + " makes a connection to Peer " + destPeerId, true); // Record in log file
-
-            // Initialization
-            peerBitfieldMap.put(destPeerId, new boolean[peerBitfieldMap.get(peerId).length]); // Initially set all the bitfield of that peer to be "false"
-            downloadRateMap.put(destPeerId, 0.0); // Initially set download rate that is from that peer to zero
-
-            // Bitfield message
-            sendMessage(outputStream, messageHandler.generateBitfieldMessage(peerBitfieldMap.get(peerId))); // Send bitfield message
-            payloadLen = getMsgLen(inputStream) - 1;
-            getMsgType(inputStream);
-            updatePeerBitfieldMap(inputStream, payloadLen, destPeerId);
-
-            // Interested message
-            if (getWantedPieceIndex(destPeerId).size() != 0) sendMessage(outputStream, messageHandler.generateInterestedMessage());
-            else sendMessage(outputStream, messageHandler.generateNotInterestedMessage());
-
-            try {
-                while (!allHasCompleteFile()) {
-                    // For each iteration, get a message from socket
-                    payloadLen = getMsgLen(inputStream) - 1;
-                    msgType = getMsgType(inputStream);
-
-                    byte[] msgBody;
-                    int pieceIndex, pieceNum = 0;
-                    List<Integer> wantedList;
-
-                    switch (msgType) {
-                        case MessageHandler.CHOKE:
-                            writeToLog("Peer " + peerId + " is choked by " + destPeerId, true);
-                            request = false;
-                            break;
-
-                        case MessageHandler.UNCHOKE:
-                            writeToLog("Peer " + peerId + " is unchoked by " + destPeerId, true);
-                            request = true;
-                            wantedList = getWantedPieceIndex(destPeerId);
-                            for (int index : requestedIndexSet) wantedList.remove((Object)index);
-                            if (wantedList.size() != 0) {
-                                pieceIndex = randomlySelection(wantedList, 1).get(0);
-                                requestedIndexSet.add(pieceIndex);
-                                sendMessage(outputStream, messageHandler.generateRequestMessage(pieceIndex));
-                            }
-                            break;
-
-                        case MessageHandler.INTERESTED:
-                            writeToLog("Peer " + peerId + " received the 'interested' message from " + destPeerId, true);
-                            interestNeighborSet.add(destPeerId);
-                            break;
-
-                        case MessageHandler.NOT_INTERESTED:
-                            writeToLog("Peer " + peerId + " received the 'not interested' message from " + destPeerId, true);
-                            interestNeighborSet.remove(destPeerId);
-                            break;
-
-                        case MessageHandler.HAVE:
-                            msgBody = receiveMessage(inputStream, 4);
-                            pieceIndex = ByteBuffer.wrap(msgBody).getInt();
-                            writeToLog("Peer " + peerId + " received the 'have' message from " + destPeerId + " for the piece " + pieceIndex, true);
-
-                            // Update bitfields
-                            boolean[] bitmap = peerBitfieldMap.get(destPeerId);
-                            bitmap[pieceIndex] = true;
-                            peerBitfieldMap.put(destPeerId, bitmap);
-
-                            // Then check and send interest or not-interest message back
-                            if (getWantedPieceIndex(destPeerId).size() != 0) {
-                                sendMessage(outputStream, messageHandler.generateInterestedMessage());
-                            }
-                            else {
-                                sendMessage(outputStream, messageHandler.generateNotInterestedMessage());
-                            }
-                            break;
-
-                        case MessageHandler.REQUEST:
-                            msgBody = receiveMessage(inputStream, 4);
-                            pieceIndex = ByteBuffer.wrap(msgBody).getInt();
-                            sendMessage(outputStream, messageHandler.generatePieceMessage(pieceIndex, filePieces.get(pieceIndex)));
-                            break;
-
-                        case MessageHandler.PIECE:
-                            msgBody = receiveMessage(inputStream, 4);
-                            pieceIndex = ByteBuffer.wrap(msgBody).getInt();
-
-                            // Download message
-                            long startTime = System.nanoTime();
-                            byte[] content = receiveMessage(inputStream, payloadLen - 4);
-                            long endTime = System.nanoTime();
-
-                            // Update download rate
-                            double preAvg = downloadRateMap.get(destPeerId), curRate = content.length * 1.0 / (endTime - startTime);
-                            if (preAvg == 0) {
-                                downloadRateMap.put(destPeerId, curRate);
-                                pieceNum = 1;
-                            }
-                            else {
-                                pieceNum++;
-                                downloadRateMap.put(destPeerId, preAvg + (curRate - preAvg) / pieceNum);
-                            }
-
-                            // Update bitmap
-                            boolean[] selfBitmap = peerBitfieldMap.get(peerId);
-
-                            if (!selfBitmap[pieceIndex]) {
-                                filePieces.set(pieceIndex, content);
-                                selfBitmap[pieceIndex] = true;
-                                peerBitfieldMap.put(peerId, selfBitmap);
-
-                                // Write into log
-                                int cnt = 0;
-                                for (boolean bit : peerBitfieldMap.get(peerId)) {
-                                    if (bit) cnt++;
-                                }
-                                writeToLog("Peer " + peerId + " has downloaded the piece " + pieceIndex + " from " + destPeerId + ". Now the number of pieces it has is " + cnt + ".", true);
-                                if (cnt == peerBitfieldMap.get(peerId).length) {
-                                    writeToLog("Peer " + peerId + " has downloaded the complete file", true);
-                                }
-                            }
-
-                            // Send 'have' message to other peers
-                            for (ObjectOutputStream stream : peerSocketMap.values()) {
-                                sendMessage(stream, messageHandler.generateHaveMessage(pieceIndex));
-                            }
-                            sentHavePieceSet.add(pieceIndex);
-
-                            // Decide whether to send "not interest" and "request" message
-                            wantedList = getWantedPieceIndex(destPeerId);
-                            if (wantedList.size() == 0) {
-                                sendMessage(outputStream, messageHandler.generateNotInterestedMessage());
-                            }
-                            else if (request) {
-                                pieceIndex = randomlySelection(wantedList, 1).get(0);
-                                requestedIndexSet.add(pieceIndex);
-                                sendMessage(outputStream, messageHandler.generateRequestMessage(pieceIndex));
-                            }
-                            break;
-
-                        default:
-                            break;
-                    }
-                }
-            }
-            catch (Exception e) {
-                System.exit(0);
-            }
+            runSession(transport, true);
         }
     }
 
@@ -251,14 +147,13 @@ public class peerProcess {
         @Override
         public void run(){
             try {
-                // Start listening
-                ServerSocket serverSocket = new ServerSocket(listenPort);
+                // Start listening, sockets come from channels so that file regions can be sent through them
+                ServerSocketChannel serverChannel = ServerSocketChannel.open();
+                serverChannel.bind(new InetSocketAddress(listenPort));
                 for (int i = 0; i < serverConnectionNum; i++) {
                     // After getting a request from a client peer, start a new working thread for communication with that client
-                    Socket socket = serverSocket.accept();
-                    Thread serverThread = new Thread(new ServerThread(socket));
-                    threadList.add(serverThread);
-                    serverThread.start();
+                    Socket socket = serverChannel.accept().socket();
+                    threadList.add(PeerThreads.start(new ServerThread(socket), "server-" + socket.getPort(), false));
                 }
             }
             catch (Exception e) {
@@ -272,8 +167,7 @@ public class peerProcess {
      */
     private static class ServerThread implements Runnable {
         private final Socket socket;
-        ObjectInputStream inputStream;
-        ObjectOutputStream outputStream;
+        FrameTransport transport;
 
         public ServerThread(Socket socket) {
             this.socket = socket;
@@ -283,274 +177,867 @@ public class peerProcess {
         public void run() {
             // Build TCP connection
             try {
-                // Initialize input and output stream
-                inputStream = new ObjectInputStream(socket.getInputStream());
-                outputStream = new ObjectOutputStream(socket.getOutputStream());
+                // Initialize the transport, it opens the input stream first as the original peers do
+                transport = new FrameTransport(socket, false, sendQueueBytes, coalesceNanos);
             }
             catch (Exception e) {
                 e.printStackTrace();
             }
 
             // Start send & receive messages
-            int payloadLen = 0;
-            char msgType = '0';
-            Set<Integer> requestedIndexSet = new HashSet<>();
-            boolean request = true;
-
-            // Handshake message
-            sendMessage(outputStream, messageHandler.generateHandshakeMessage(peerId)); // Send handshake message
-            int destPeerId = messageHandler.getPeerIdFromHandShakeMsg(receiveMessage(inputStream, 32)); // Receive handshake message from socket, get and store its peer Id
-            peerSocketMap.put(destPeerId, outputStream);
-            writeToLog("Peer " + peerId + " receives handshake message from Peer " + destPeerId, true);
-            writeToLog("Peer " + peerId + " is connected from Peer " + destPeerId, true); // Record in log file
-
-            // Initialization
-            peerBitfieldMap.put(destPeerId, new boolean[peerBitfieldMap.get(peerId).length]); // Initially set all the bitfield of that peer to be "false"
-            downloadRateMap.put(destPeerId, 0.0); // Initially set download rate that is from that peer to zero
-
-            // Bitfield message
-            sendMessage(outputStream, messageHandler.generateBitfieldMessage(peerBitfieldMap.get(peerId))); // Send bitfield message
-            payloadLen = getMsgLen(inputStream) - 1;
-            getMsgType(inputStream);
-            updatePeerBitfieldMap(inputStream, payloadLen, destPeerId);
-
-            // Interested message
-            if (getWantedPieceIndex(destPeerId).size() != 0) sendMessage(outputStream, messageHandler.generateInterestedMessage());
-            else sendMessage(outputStream, messageHandler.generateNotInterestedMessage());
+            runSession(transport, false);
+        }
+    }
 
-            try {
-                while (!allHasCompleteFile()) {
-                    // For each iteration, get a message from socket
-                    payloadLen = getMsgLen(inputStream) - 1;
-                    msgType = getMsgType(inputStream);
-
-                    byte[] msgBody;
-                    int pieceIndex, pieceNum = 0;
-                    List<Integer> wantedList;
-
-                    switch (msgType) {
-                        case MessageHandler.CHOKE:
-                            writeToLog("Peer " + peerId + " is choked by " + destPeerId, true);
-                            request = false;
-                            break;
-
-                        case MessageHandler.UNCHOKE:
-                            writeToLog("Peer " + peerId + " is unchoked by " + destPeerId, true);
-                            request = true;
-                            wantedList = getWantedPieceIndex(destPeerId);
-                            for (int index : requestedIndexSet) wantedList.remove((Object)index);
-                            if (wantedList.size() != 0) {
-                                pieceIndex = randomlySelection(wantedList, 1).get(0);
-                                requestedIndexSet.add(pieceIndex);
-                                sendMessage(outputStream, messageHandler.generateRequestMessage(pieceIndex));
-                            }
-                            break;
-
-                        case MessageHandler.INTERESTED:
-                            writeToLog("Peer " + peerId + " received the 'interested' message from " + destPeerId, true);
-                            interestNeighborSet.add(destPeerId);
-                            break;
-
-                        case MessageHandler.NOT_INTERESTED:
-                            writeToLog("Peer " + peerId + " received the 'not interested' message from " + destPeerId, true);
-                            interestNeighborSet.remove(destPeerId);
-                            break;
-
-                        case MessageHandler.HAVE:
-                            msgBody = receiveMessage(inputStream, 4);
-                            pieceIndex = ByteBuffer.wrap(msgBody).getInt();
-                            writeToLog("Peer " + peerId + " received the 'have' message from " + destPeerId + " for the piece " + pieceIndex, true);
-
-                            // Update bitfields
-                            boolean[] bitmap = peerBitfieldMap.get(destPeerId);
-                            bitmap[pieceIndex] = true;
-                            peerBitfieldMap.put(destPeerId, bitmap);
-
-                            // Then check and send interest or not-interest message back
-                            if (getWantedPieceIndex(destPeerId).size() != 0) {
-                                sendMessage(outputStream, messageHandler.generateInterestedMessage());
-                            }
-                            else {
-                                sendMessage(outputStream, messageHandler.generateNotInterestedMessage());
-                            }
-                            break;
-
-                        case MessageHandler.REQUEST:
-                            msgBody = receiveMessage(inputStream, 4);
-                            pieceIndex = ByteBuffer.wrap(msgBody).getInt();
-                            sendMessage(outputStream, messageHandler.generatePieceMessage(pieceIndex, filePieces.get(pieceIndex)));
-                            break;
-
-                        case MessageHandler.PIECE:
-                            msgBody = receiveMessage(inputStream, 4);
-                            pieceIndex = ByteBuffer.wrap(msgBody).getInt();
-
-                            // Download message
-                            long startTime = System.nanoTime();
-                            byte[] content = receiveMessage(inputStream, payloadLen - 4);
-                            long endTime = System.nanoTime();
-
-                            // Update download rate
-                            double preAvg = downloadRateMap.get(destPeerId), curRate = content.length * 1.0 / (endTime - startTime);
-                            if (preAvg == 0) {
-                                downloadRateMap.put(destPeerId, curRate);
-                                pieceNum = 1;
-                            }
-                            else {
-                                pieceNum++;
-                                downloadRateMap.put(destPeerId, preAvg + (curRate - preAvg) / pieceNum);
-                            }
+    /**
+     * @description Bridge from the reactor engine to the message handling shared with the blocking threads
+     */
+    private static class ReactorHandler implements ReactorEngine.Handler {
+        @Override
+        public PeerSession onConnected(PeerConnection connection, int destPeerId, int remoteExtensions, boolean initiator) {
+            return startSession(connection, destPeerId, localExtensions & remoteExtensions, initiator);
+        }
 
-                            // Update bitmap
-                            boolean[] selfBitmap = peerBitfieldMap.get(peerId);
-
-                            if (!selfBitmap[pieceIndex]) {
-                                filePieces.set(pieceIndex, content);
-                                selfBitmap[pieceIndex] = true;
-                                peerBitfieldMap.put(peerId, selfBitmap);
-
-                                // Write into log
-                                int cnt = 0;
-                                for (boolean bit : peerBitfieldMap.get(peerId)) {
-                                    if (bit) cnt++;
-                                }
-                                writeToLog("Peer " + peerId + " has downloaded the piece " + pieceIndex + " from " + destPeerId + ". Now the number of pieces it has is " + cnt + ".", true);
-                                if (cnt == peerBitfieldMap.get(peerId).length) {
-                                    writeToLog("Peer " + peerId + " has downloaded the complete file", true);
-                                }
-                            }
+        @Override
+        public void onMessage(PeerSession session, char msgType, ByteBuffer payload) {
+            handleMessage(session, msgType, payload);
+        }
 
-                            // Send 'have' message to other peers
-                            for (ObjectOutputStream stream : peerSocketMap.values()) {
-                                sendMessage(stream, messageHandler.generateHaveMessage(pieceIndex));
-                            }
-                            sentHavePieceSet.add(pieceIndex);
+        @Override
+        public ByteBuffer receiveTarget(PeerSession session, int pieceIndex, int offset, int len) {
+            return peerProcess.receiveTarget(session, pieceIndex, offset, len);
+        }
 
-                            // Decide whether to send "not interest" and "request" message
-                            wantedList = getWantedPieceIndex(destPeerId);
-                            if (wantedList.size() == 0) {
-                                sendMessage(outputStream, messageHandler.generateNotInterestedMessage());
-                            }
-                            else if (request) {
-                                pieceIndex = randomlySelection(wantedList, 1).get(0);
-                                requestedIndexSet.add(pieceIndex);
-                                sendMessage(outputStream, messageHandler.generateRequestMessage(pieceIndex));
-                            }
-                            break;
+        @Override
+        public void onPiece(PeerSession session, int pieceIndex, int len, boolean kept, long elapsedNanos) {
+            handlePiece(session, pieceIndex, len, kept, elapsedNanos);
+        }
 
-                        default:
-                            break;
+        @Override
+        public void onBlock(PeerSession session, int pieceIndex, int offset, int len, boolean kept, long elapsedNanos) {
+            handleBlock(session, pieceIndex, offset, len, kept, elapsedNanos);
+        }
+    }
+
+    /**
+     * Exchange messages with a neighbor through a blocking transport until all the peers have the complete file
+     * @param initiator "true" if this peer made the connection
+     */
+    private static void runSession(FrameTransport transport, boolean initiator) {
+        ByteBuffer inBuffer = ByteBuffer.allocate(frameBufferLen); // Reused for every non-piece message on this connection
+
+        // Handshake message
+        sendMessage(transport, MessageCodec.encodeHandshake(frameBuffer(), peerId, localExtensions)); // Send handshake message
+        ByteBuffer handshake = receiveMessage(transport, inBuffer, MessageCodec.HANDSHAKE_LEN); // Receive handshake message from socket
+        int extensions = localExtensions & MessageCodec.decodeHandshakeExtensions(handshake);
+        negotiate(transport, extensions); // Switch framing if both sides support it
+        PeerSession session = startSession(transport, MessageCodec.decodeHandshakePeerId(handshake), extensions, initiator);
+
+        try {
+            while (!allHasCompleteFile()) {
+                // For each iteration, get a message from socket
+                int payloadLen = getMsgLen(transport, inBuffer) - 1;
+                char msgType = getMsgType(transport);
+
+                if (msgType == MessageCodec.PIECE) {
+                    int pieceIndex = MessageCodec.decodeIndex(receiveMessage(transport, inBuffer, MessageCodec.INDEX_LEN));
+
+                    // Download message straight into its piece
+                    long startTime = System.nanoTime();
+                    int len = payloadLen - MessageCodec.INDEX_LEN;
+                    boolean kept = receiveContent(transport, receiveTarget(session, pieceIndex, 0, len), inBuffer, len);
+                    handlePiece(session, pieceIndex, len, kept, System.nanoTime() - startTime);
+                }
+                else if (msgType == MessageCodec.BLOCK) {
+                    ByteBuffer fields = receiveMessage(transport, inBuffer, MessageCodec.INDEX_LEN + MessageCodec.OFFSET_LEN);
+                    int pieceIndex = MessageCodec.decodeIndex(fields), offset = MessageCodec.decodeOffset(fields);
+
+                    // Download block straight into its piece
+                    long startTime = System.nanoTime();
+                    int len = payloadLen - MessageCodec.INDEX_LEN - MessageCodec.OFFSET_LEN;
+                    boolean kept = receiveContent(transport, receiveTarget(session, pieceIndex, offset, len), inBuffer, len);
+                    handleBlock(session, pieceIndex, offset, len, kept, System.nanoTime() - startTime);
+                }
+                else {
+                    handleMessage(session, msgType, receiveMessage(transport, inBuffer, payloadLen));
+                }
+            }
+            transport.finish();
+        }
+        catch (Exception e) {
+            if (!closedAfterCompletion()) System.exit(0);
+        }
+    }
+
+    /**
+     * Register a neighbor once the handshake is done, then send the bitfield message to it
+     * @param extensions Extensions supported by both sides
+     * @param initiator "true" if this peer made the connection
+     */
+    private static PeerSession startSession(PeerConnection connection, int destPeerId, int extensions, boolean initiator) {
+        PeerSession session = new PeerSession(connection, destPeerId, extensions, 0);
+        session.window = (pipelineDepth == 0 ? AUTO_PIPELINE_MIN : pipelineDepth) * (session.usesBlocks() ? blocksPerPiece() : 1);
+        connection.setDrainListener(() -> serveDeferred(session));
+        peerSocketMap.put(destPeerId, connection);
+        writeToLog("Peer " + peerId + " receives handshake message from Peer " + destPeerId, true);
+        if (initiator) writeToLog("Peer " + peerId + " makes a connection to Peer " + destPeerId, true); // Record in log file
+        else writeToLog("Peer " + peerId + " is connected from Peer " + destPeerId, true);
+
+        // Initialization
+        peerBitfieldMap.put(destPeerId, new Bitfield(peerBitfieldMap.get(peerId).length())); // Initially set all the bitfield of that peer to be "false"
+        downloadRateMap.put(destPeerId, 0.0); // Initially set download rate that is from that peer to zero
+        sessionMap.put(destPeerId, session);
+
+        // Bitfield message
+        sendMessage(connection, MessageCodec.encodeBitfield(frameBuffer(), peerBitfieldMap.get(peerId))); // Send bitfield message
+        return session;
+    }
+
+    /**
+     * Handle any message other than PIECE from a neighbor
+     * @param payload Buffer holding the payload from its position to its limit
+     */
+    private static void handleMessage(PeerSession session, char msgType, ByteBuffer payload) {
+        int destPeerId = session.destPeerId, pieceIndex;
+        PeerConnection connection = session.connection;
+
+        switch (msgType) {
+            case MessageCodec.BITFIELD:
+                updatePeerBitfieldMap(payload, destPeerId);
+
+                // Interested message
+                sendInterest(connection, destPeerId);
+                break;
+
+            case MessageCodec.CHOKE:
+                writeToLog("Peer " + peerId + " is choked by " + destPeerId, true);
+
+                // Give the outstanding requests back so that other neighbors can be asked for them, the pieces are
+                // still taken if they come anyway
+                synchronized (session) {
+                    session.request = false;
+                    Metrics.counter("requestsRequeued").add(session.outstanding());
+                    inFlightPieceSet.removeAll(session.requestedIndexSet);
+                    session.requestedIndexSet.clear();
+                    for (long key : session.requestedBlockSet) {
+                        PieceAssembly assembly = assemblyMap.get(PieceAssembly.keyPieceIndex(key));
+                        if (assembly != null) assembly.release(PieceAssembly.keyBlock(key));
                     }
+                    session.requestedBlockSet.clear();
+                    session.busySince = 0;
                 }
+                break;
+
+            case MessageCodec.UNCHOKE:
+                writeToLog("Peer " + peerId + " is unchoked by " + destPeerId, true);
+                synchronized (session) {
+                    session.request = true;
+                    fillPipeline(session);
+                }
+                break;
+
+            case MessageCodec.INTERESTED:
+                writeToLog("Peer " + peerId + " received the 'interested' message from " + destPeerId, true);
+                interestNeighborSet.add(destPeerId);
+                break;
+
+            case MessageCodec.NOT_INTERESTED:
+                writeToLog("Peer " + peerId + " received the 'not interested' message from " + destPeerId, true);
+                interestNeighborSet.remove(destPeerId);
+                break;
+
+            case MessageCodec.HAVE:
+                pieceIndex = MessageCodec.decodeIndex(payload);
+                writeToLog("Peer " + peerId + " received the 'have' message from " + destPeerId + " for the piece " + pieceIndex, true);
+
+                // Update bitfields
+                peerBitfieldMap.get(destPeerId).set(pieceIndex);
+
+                // Then check and send interest or not-interest message back
+                sendInterest(connection, destPeerId);
+                break;
+
+            case MessageCodec.HAVE_BATCH:
+                Bitfield bitmap = peerBitfieldMap.get(destPeerId);
+                while (payload.remaining() >= MessageCodec.RANGE_LEN) {
+                    int first = MessageCodec.decodeIndex(payload), count = MessageCodec.decodeRangeCount(payload);
+                    writeToLog("Peer " + peerId + " received the 'have' message from " + destPeerId + " for the pieces " + first + " to " + (first + count - 1), true);
+                    for (int i = Math.max(0, first); i < Math.min(bitmap.length(), first + count); i++) bitmap.set(i);
+                }
+                sendInterest(connection, destPeerId);
+                break;
+
+            case MessageCodec.REQUEST:
+                pieceIndex = MessageCodec.decodeIndex(payload);
+                serveRequest(session, pieceIndex, -1, 0);
+                break;
+
+            case MessageCodec.REQUEST_BLOCK:
+                pieceIndex = MessageCodec.decodeIndex(payload);
+                int offset = MessageCodec.decodeOffset(payload), len = MessageCodec.decodeBlockLen(payload);
+                serveRequest(session, pieceIndex, offset, len);
+                break;
+
+            default:
+                break;
+        }
+    }
+
+    /**
+     * Answer a REQUEST or REQUEST_BLOCK message, or put it off while the outbound queue to the neighbor is congested,
+     * so that a neighbor which asks faster than it downloads can't pile up pieces in memory
+     * @param offset Offset of the block in the piece, -1 for a whole piece
+     */
+    private static void serveRequest(PeerSession session, int pieceIndex, int offset, int len) {
+        if (session.deferredRequests.isEmpty() && !session.connection.isCongested()) {
+            sendRequested(session.connection, pieceIndex, offset, len);
+            return;
+        }
+        Metrics.counter("requestsDeferred").increment();
+        session.deferredRequests.add(new int[]{pieceIndex, offset, len});
+        serveDeferred(session); // The queue may have drained in the meantime
+    }
+
+    /**
+     * Answer the requests put off so far until the outbound queue is congested again, also run by the writer of
+     * the connection every time the queue drains
+     */
+    private static void serveDeferred(PeerSession session) {
+        int[] request;
+        while (!session.connection.isCongested() && (request = session.deferredRequests.poll()) != null) {
+            sendRequested(session.connection, request[0], request[1], request[2]);
+        }
+    }
+
+    /**
+     * @param offset Offset of the block in the piece, -1 for a whole piece
+     */
+    private static void sendRequested(PeerConnection connection, int pieceIndex, int offset, int len) {
+        if (offset < 0) sendPiece(connection, pieceIndex);
+        else sendBlock(connection, pieceIndex, offset, len);
+    }
+
+    /**
+     * Send a piece to a neighbor, requests for a piece self doesn't have are ignored
+     */
+    private static void sendPiece(PeerConnection connection, int pieceIndex) {
+        Bitfield selfBitmap = peerBitfieldMap.get(peerId);
+        if (pieceIndex < 0 || pieceIndex >= selfBitmap.length() || !selfBitmap.get(pieceIndex)) return;
+        int len = pieceLen(pieceIndex);
+        sendContent(connection, MessageCodec.encodePieceHeader(frameBuffer(), pieceIndex, len), pieceIndex, 0, len);
+    }
+
+    /**
+     * Send a block of a piece to a neighbor, requests for a block outside the piece or a piece self doesn't have
+     * are ignored
+     * @param offset Offset of the block in the piece
+     */
+    private static void sendBlock(PeerConnection connection, int pieceIndex, int offset, int len) {
+        Bitfield selfBitmap = peerBitfieldMap.get(peerId);
+        if (pieceIndex < 0 || pieceIndex >= selfBitmap.length() || !selfBitmap.get(pieceIndex)) return;
+        if (offset < 0 || len <= 0 || len > MessageCodec.MAX_BLOCK_LEN || offset > pieceLen(pieceIndex) - len) return;
+        sendContent(connection, MessageCodec.encodeBlockHeader(frameBuffer(), pieceIndex, offset, len), pieceIndex, offset, len);
+    }
+
+    /**
+     * Send a message header followed by a part of a piece. With the I/O scheduler the part is read in its turn and
+     * sent from the I/O thread, after the piece if it is still waiting to be written, with asynchronous storage it
+     * is read and sent from a storage thread. Either way the header is copied off the buffer of this thread
+     * @param frame Buffer holding the encoded message header
+     * @param offset Start of the content in the piece
+     */
+    private static void sendContent(PeerConnection connection, ByteBuffer frame, int pieceIndex, int offset, int len) {
+        if (ioScheduler == null && asyncStorage == null) {
+            sendStoredContent(connection, frame, pieceIndex, offset, len);
+            return;
+        }
+        ByteBuffer header = ByteBuffer.allocate(frame.position()).put(frame.array(), 0, frame.position());
+        Runnable send = () -> sendStoredContent(connection, header, pieceIndex, offset, len);
+        if (ioScheduler != null) ioScheduler.submitRead(pieceIndex, offset, len, send);
+        else asyncStorage.read(pieceIndex, offset, len, send);
+    }
+
+    /**
+     * Send a message header followed by a part of a piece in the storage, through the piece cache if there is one,
+     * otherwise straight from the file to the socket when the part is in one file kept open and the connection
+     * allows, or else from a region of the storage
+     */
+    private static void sendStoredContent(PeerConnection connection, ByteBuffer frame, int pieceIndex, int offset, int len) {
+        if (pieceCache != null) {
+            sendMessage(connection, frame, pieceCache.get(pieceIndex).position(offset).limit(offset + len));
+            return;
+        }
+        long position = (long)pieceIndex * pieceSize + offset;
+        PieceStorage.Segment segment = storage.segmentOf(position, len);
+        try {
+            if (segment != null && connection.sendFileRegion(frame, segment.channel, position - segment.start, len)) return;
+        }
+        catch (Exception e) {
+            connectionFailed(e);
+        }
+        sendMessage(connection, frame, storage.region(position, len));
+    }
+
+    /**
+     * Find where the content of a PIECE or BLOCK message goes, the buffer its piece is assembled in, so that it is
+     * read from the connection straight into place. A whole piece which isn't being assembled yet gets an assembly
+     * of its own, unless it has been completed meanwhile: completing a piece marks it as present before its
+     * assembly goes away, and the check and the creation are one atomic step on the map
+     * @param offset Offset of the content in the piece, 0 for a whole piece
+     * @return Buffer with room for exactly the content, or null if the content isn't needed and is dropped
+     */
+    private static ByteBuffer receiveTarget(PeerSession session, int pieceIndex, int offset, int len) {
+        Bitfield selfBitfield = peerBitfieldMap.get(peerId);
+        session.receiving = null;
+        if (pieceIndex < 0 || pieceIndex >= selfBitfield.length() || selfBitfield.get(pieceIndex)) return null;
+        PieceAssembly assembly = assemblyMap.get(pieceIndex);
+        if (assembly == null && offset == 0 && len == pieceLen(pieceIndex)) {
+            assembly = assemblyMap.compute(pieceIndex, (i, started) -> started != null || selfBitfield.get(i) ? started : new PieceAssembly(i, len, blockSize, pieceArena));
+        }
+        ByteBuffer target = assembly == null ? null : assembly.target(offset, len);
+        if (target != null) session.receiving = assembly;
+        return target;
+    }
+
+    /**
+     * Handle a PIECE message from a neighbor
+     * @param kept "true" if the content was read into its piece, "false" if it was dropped
+     * @param elapsedNanos Time spent on receiving the content, for the download rate
+     */
+    private static void handlePiece(PeerSession session, int pieceIndex, int len, boolean kept, long elapsedNanos) {
+        updateDownloadRate(session, len, elapsedNanos);
+
+        // The request is answered, the window can take another one
+        synchronized (session) {
+            inFlightPieceSet.remove(pieceIndex);
+            if (session.requestedIndexSet.remove(pieceIndex)) updateWindow(session, len);
+        }
+
+        if (kept) assemble(session, 0, len);
+        requestMore(session);
+    }
+
+    /**
+     * Handle a BLOCK message from a neighbor, the piece is stored once its last block arrives
+     * @param offset Offset of the block in the piece
+     * @param kept "true" if the content was read into its piece, "false" if it was dropped
+     * @param elapsedNanos Time spent on receiving the content, for the download rate
+     */
+    private static void handleBlock(PeerSession session, int pieceIndex, int offset, int len, boolean kept, long elapsedNanos) {
+        updateDownloadRate(session, len, elapsedNanos);
+        synchronized (session) {
+            if (session.requestedBlockSet.remove(PieceAssembly.blockKey(pieceIndex, offset / blockSize))) updateWindow(session, len);
+        }
+
+        if (kept) assemble(session, offset, len);
+        requestMore(session);
+    }
+
+    /**
+     * Record content read into the assembly it was targeted at, and store the piece once it is complete, after
+     * checking it against its hash if there are piece hashes. A piece being checked isn't wanted from anyone, its
+     * complete assembly takes no more content
+     */
+    private static void assemble(PeerSession session, int offset, int len) {
+        PieceAssembly assembly = session.receiving;
+        session.receiving = null;
+        if (!assembly.receive(offset, len)) return;
+        if (verifier == null) {
+            completePiece(session, assembly);
+            return;
+        }
+        completingPieceSet.add(assembly.pieceIndex);
+        verifier.submit(assembly.pieceIndex, assembly.content, valid -> {
+            if (valid) completePiece(session, assembly);
+            else rejectPiece(session, assembly);
+        });
+    }
+
+    /**
+     * Store a complete piece and let its assembly go. The piece is marked as present before its assembly goes away,
+     * so that late content for it is dropped. With asynchronous storage the piece is stored once it is written, until
+     * then its complete assembly takes no more content and it isn't wanted from anyone
+     */
+    private static void completePiece(PeerSession session, PieceAssembly assembly) {
+        if (asyncStorage != null && !peerBitfieldMap.get(peerId).get(assembly.pieceIndex)) {
+            completingPieceSet.add(assembly.pieceIndex);
+            asyncStorage.write(assembly.pieceIndex, assembly.content, () -> {
+                try {
+                    storePiece(session, assembly.pieceIndex, assembly, true);
+                }
+                finally {
+                    releasePiece(assembly);
+                }
+            });
+        }
+        else {
+            storePiece(session, assembly.pieceIndex, assembly, false);
+            releasePiece(assembly);
+        }
+    }
+
+    private static void releasePiece(PieceAssembly assembly) {
+        assemblyMap.remove(assembly.pieceIndex, assembly);
+        inFlightPieceSet.remove(assembly.pieceIndex);
+        completingPieceSet.remove(assembly.pieceIndex);
+    }
+
+    /**
+     * Drop a piece which doesn't match its hash and ask for it again from every neighbor having it
+     */
+    private static void rejectPiece(PeerSession session, PieceAssembly assembly) {
+        int pieceIndex = assembly.pieceIndex;
+        writeToLog("Peer " + peerId + " dropped the piece " + pieceIndex + " from " + session.destPeerId + " as it doesn't match its hash.", true);
+        assemblyMap.remove(pieceIndex, assembly);
+        assembly.discard();
+        inFlightPieceSet.remove(pieceIndex);
+        completingPieceSet.remove(pieceIndex);
+        for (PeerSession neighbor : sessionMap.values()) {
+            if (peerBitfieldMap.get(neighbor.destPeerId).get(pieceIndex)) {
+                sendInterest(neighbor.connection, neighbor.destPeerId);
+                requestMore(neighbor);
             }
-            catch (Exception e) {
-                System.exit(0);
+        }
+    }
+
+    /**
+     * Fold the rate of one received piece or block into the average download rate from a neighbor
+     */
+    private static void updateDownloadRate(PeerSession session, int contentLen, long elapsedNanos) {
+        int destPeerId = session.destPeerId;
+        double preAvg = downloadRateMap.get(destPeerId), curRate = contentLen * 1.0 / elapsedNanos;
+        if (preAvg == 0) {
+            downloadRateMap.put(destPeerId, curRate);
+            session.pieceNum = 1;
+        }
+        else {
+            session.pieceNum++;
+            downloadRateMap.put(destPeerId, preAvg + (curRate - preAvg) / session.pieceNum);
+        }
+    }
+
+    /**
+     * Keep a complete piece and tell every neighbor about it. With the I/O scheduler the piece counts as present as
+     * soon as it is queued for writing, reads of it wait behind the write
+     * @param assembly Assembly holding the piece, its buffer goes back to the arena once the piece is in the file
+     * @param written "true" if the piece is in the file already
+     */
+    private static void storePiece(PeerSession session, int pieceIndex, PieceAssembly assembly, boolean written) {
+        int destPeerId = session.destPeerId;
+
+        // Update bitmap
+        Bitfield selfBitmap = peerBitfieldMap.get(peerId);
+        boolean completed = false, queued = false;
+
+        if (!selfBitmap.get(pieceIndex)) {
+            // The piece goes into the file before it is marked as present, so it is never served before it is there
+            if (ioScheduler != null && !written) {
+                ioScheduler.submitWrite(pieceIndex, assembly.content, () -> {
+                    if (journal != null) journal.record(pieceIndex, assembly.content);
+                    assembly.discard();
+                });
+                queued = true;
+            }
+            else {
+                if (!written) storage.write(pieceIndex, assembly.content);
+                if (journal != null) journal.record(pieceIndex, assembly.content);
+            }
+
+            // Threads storing different pieces at once may all see the bitfield complete, only one of them finishes
+            // the file
+            if (selfBitmap.set(pieceIndex)) {
+                // Write into log
+                int cnt = selfBitmap.cardinality();
+                writeToLog("Peer " + peerId + " has downloaded the piece " + pieceIndex + " from " + destPeerId + ". Now the number of pieces it has is " + cnt + ".", true);
+                completed = cnt == selfBitmap.length() && fileCompleted.compareAndSet(false, true);
+            }
+            if (completed) {
+                try {
+                    if (ioScheduler != null) ioScheduler.sync();
+                    storage.moveTo(Paths.get(fileName));
+                    if (journal != null) journal.delete();
+                }
+                catch (Exception e) {
+                    System.exit(0);
+                }
+                writeToLog("Peer " + peerId + " has downloaded the complete file", true);
+            }
+        }
+        if (!queued) assembly.discard();
+
+        // Send 'have' message to other peers. Neighbors taking HAVE_BATCH don't hear about pieces they already have,
+        // and get the pieces they lack in batches if batching is on
+        ByteBuffer haveMsg = MessageCodec.encodeHave(frameBuffer(), pieceIndex);
+        for (PeerSession neighbor : sessionMap.values()) {
+            if (!neighbor.takesHaveBatch()) sendMessage(neighbor.connection, haveMsg);
+            else if (neighbor.destPeerId == destPeerId || peerBitfieldMap.get(neighbor.destPeerId).get(pieceIndex)) Metrics.counter("havesSkipped").increment();
+            else if (haveBatchMillis > 0) neighbor.pendingHaves.add(pieceIndex);
+            else sendMessage(neighbor.connection, haveMsg);
+        }
+
+        // The skipped pieces still count for knowing when every peer is done, so those neighbors get the complete
+        // bitfield at the end
+        if (completed) {
+            ByteBuffer bitfieldMsg = MessageCodec.encodeBitfield(frameBuffer(), selfBitmap);
+            for (PeerSession neighbor : sessionMap.values()) {
+                if (neighbor.takesHaveBatch()) sendMessage(neighbor.connection, bitfieldMsg);
+            }
+        }
+
+        // Only once everything is queued, the shutdown may start as soon as every piece counts as announced
+        sentHaveBitfield.set(pieceIndex);
+    }
+
+    /**
+     * Announce the pieces waiting for a neighbor in HAVE_BATCH messages, each run of consecutive pieces as one range
+     */
+    private static void flushHaves(PeerSession session) {
+        List<Integer> indexList = new ArrayList<>();
+        Integer pieceIndex;
+        while ((pieceIndex = session.pendingHaves.poll()) != null) indexList.add(pieceIndex);
+        if (indexList.size() == 0) return;
+        Collections.sort(indexList);
+
+        // Ranges as {first index, count} pairs
+        int[] ranges = new int[indexList.size() * 2];
+        int rangeNum = 0;
+        for (int index : indexList) {
+            if (rangeNum > 0 && index < ranges[rangeNum * 2 - 2] + ranges[rangeNum * 2 - 1]) continue;
+            if (rangeNum > 0 && index == ranges[rangeNum * 2 - 2] + ranges[rangeNum * 2 - 1]) ranges[rangeNum * 2 - 1]++;
+            else {
+                ranges[rangeNum * 2] = index;
+                ranges[rangeNum * 2 + 1] = 1;
+                rangeNum++;
+            }
+        }
+
+        // Every message fits in one frame buffer
+        int maxRangeNum = (frameBufferLen - MessageCodec.HEADER_LEN) / MessageCodec.RANGE_LEN;
+        for (int from = 0; from < rangeNum; from += maxRangeNum) {
+            sendMessage(session.connection, MessageCodec.encodeHaveBatch(frameBuffer(), ranges, from, Math.min(maxRangeNum, rangeNum - from)));
+        }
+        Metrics.counter("havesBatched").add(indexList.size());
+    }
+
+    /**
+     * After a piece or block arrives, decide whether to send "not interest" or "request" messages. The requests to
+     * a neighbor are made by its connection, or by a verifier thread asking again for a rejected piece, so they are
+     * made under the lock of its session
+     */
+    private static void requestMore(PeerSession session) {
+        if (pickWantedPiece(session.destPeerId, i -> false) == -1) {
+            sendMessage(session.connection, MessageCodec.encodeNotInterested(frameBuffer()));
+        }
+        else {
+            synchronized (session) {
+                fillPipeline(session);
+            }
+        }
+    }
+
+    /**
+     * Send requests to a neighbor that has unchoked us until its window of outstanding requests is full. Pieces
+     * nobody else is sending are asked first, pieces already on the way from another neighbor only when nothing
+     * else is left, so that the last pieces are not held up by a single slow neighbor
+     */
+    private static void fillPipeline(PeerSession session) {
+        if (!session.request) return;
+        if (session.usesBlocks()) {
+            fillBlockPipeline(session);
+            return;
+        }
+        Set<Integer> requested = session.requestedIndexSet;
+        while (requested.size() < window(session)) {
+            int pieceIndex = pickWantedPiece(session.destPeerId, i -> requested.contains(i) || inFlightPieceSet.contains(i));
+            if (pieceIndex == -1) pieceIndex = pickWantedPiece(session.destPeerId, requested::contains);
+            if (pieceIndex == -1) break;
+            if (session.outstanding() == 0) session.busySince = System.nanoTime();
+            session.requestedIndexSet.add(pieceIndex);
+            inFlightPieceSet.add(pieceIndex);
+            sendMessage(session.connection, MessageCodec.encodeRequest(frameBuffer(), pieceIndex));
+        }
+    }
+
+    /**
+     * Send block requests to a neighbor until its window is full. Blocks nobody has asked for in the pieces already
+     * started come first so that pieces complete soon, then blocks of a new piece nobody else is sending, and only
+     * when nothing else is left, blocks already on the way from other neighbors
+     */
+    private static void fillBlockPipeline(PeerSession session) {
+        Bitfield destBitfield = peerBitfieldMap.get(session.destPeerId);
+        Set<Integer> triedSet = new HashSet<>(); // Pieces whose blocks are all asked from this neighbor already
+
+        while (session.requestedBlockSet.size() < window(session)) {
+            PieceAssembly assembly = null;
+            int block = -1;
+            for (PieceAssembly started : assemblyMap.values()) {
+                if (destBitfield.get(started.pieceIndex) && (block = started.claimBlock()) != -1) {
+                    assembly = started;
+                    break;
+                }
+            }
+            while (assembly == null) {
+                int pieceIndex = pickWantedPiece(session.destPeerId, inFlightPieceSet::contains);
+                if (pieceIndex == -1) break;
+                assembly = startAssembly(pieceIndex);
+                if (assembly != null) block = assembly.claimBlock();
             }
+            while (assembly == null) {
+                int pieceIndex = pickWantedPiece(session.destPeerId, triedSet::contains);
+                if (pieceIndex == -1) break;
+                triedSet.add(pieceIndex);
+                PieceAssembly started = startAssembly(pieceIndex);
+                if (started != null && (block = started.claimRequestedBlock(session.requestedBlockSet)) != -1) assembly = started;
+            }
+            if (assembly == null || block == -1) break;
+
+            if (session.outstanding() == 0) session.busySince = System.nanoTime();
+            session.requestedBlockSet.add(PieceAssembly.blockKey(assembly.pieceIndex, block));
+            sendMessage(session.connection, MessageCodec.encodeRequestBlock(frameBuffer(), assembly.pieceIndex, assembly.blockOffset(block), assembly.blockLen(block)));
         }
     }
 
+    /**
+     * Size of the request window right now, requests aren't piled up behind a congested outbound queue but one is
+     * still kept in flight so that its answer triggers the next ones
+     */
+    private static int window(PeerSession session) {
+        return session.connection.isCongested() ? 1 : session.window;
+    }
+
+    /**
+     * Get the assembly of a piece, starting it if the piece isn't being downloaded in blocks yet
+     * @return The assembly, or null if the piece has been completed since the wanted list was made
+     */
+    private static PieceAssembly startAssembly(int pieceIndex) {
+        Bitfield selfBitfield = peerBitfieldMap.get(peerId);
+        PieceAssembly assembly = assemblyMap.compute(pieceIndex, (i, started) -> started != null || selfBitfield.get(i) ? started : new PieceAssembly(i, pieceLen(i), blockSize, pieceArena));
+        if (assembly != null) inFlightPieceSet.add(pieceIndex);
+        return assembly;
+    }
+
+    /**
+     * Actual length of a piece, only the last piece may be shorter than PieceSize
+     */
+    private static int pieceLen(int pieceIndex) {
+        return (int)Math.min(pieceSize, fileSize - (long)pieceIndex * pieceSize);
+    }
+
+    /**
+     * Number of blocks in a full piece
+     */
+    private static int blocksPerPiece() {
+        return pieceSize % blockSize == 0 ? pieceSize / blockSize : pieceSize / blockSize + 1;
+    }
+
+    /**
+     * Resize an automatically sized window after a requested piece or block arrives, so that it holds the requests
+     * answered by the neighbor in AUTO_PIPELINE_NANOS. Only the time with requests outstanding is counted, the rate
+     * is smoothed over the recent requests
+     * @param contentLen Length of the piece or block content
+     */
+    private static void updateWindow(PeerSession session, int contentLen) {
+        long now = System.nanoTime();
+        if (pipelineDepth == 0 && session.busySince != 0 && now > session.busySince) {
+            double rate = contentLen * 1.0 / (now - session.busySince);
+            session.arrivalRate = session.arrivalRate == 0 ? rate : session.arrivalRate * 0.8 + rate * 0.2;
+            int unit = session.usesBlocks() ? Math.min(blockSize, pieceSize) : pieceSize;
+            int window = (int)Math.ceil(session.arrivalRate * AUTO_PIPELINE_NANOS / unit);
+            session.window = Math.max(AUTO_PIPELINE_MIN, Math.min(AUTO_PIPELINE_MAX_BYTES / unit, window));
+        }
+        session.busySince = session.outstanding() == 0 ? 0 : now;
+    }
+
+    /**
+     * Get the calling thread's frame buffer, cleared and ready for encoding one message
+     */
+    private static ByteBuffer frameBuffer() {
+        ByteBuffer buffer = sendBuffer.get();
+        buffer.clear();
+        return buffer;
+    }
+
+    /**
+     * Send a message through TCP socket
+     * @param stream The specific connection with a neighbor
+     * @param frame Buffer holding the encoded message from index 0 up to its position
+     */
+    private static void sendMessage(PeerConnection stream, ByteBuffer frame) {
+        sendMessage(stream, frame, null);
+    }
+
     /**
      * Send a message through TCP socket
-     * @param stream The specific output stream for a socket
-     * @param msg Actual message
+     * @param stream The specific connection with a neighbor
+     * @param frame Buffer holding the encoded message from index 0 up to its position
+     * @param content View of the piece content written right after the frame, from its position to its limit, null
+     *                if there is none
      */
-    private static synchronized void sendMessage(ObjectOutputStream stream, byte[] msg) {
+    private static void sendMessage(PeerConnection stream, ByteBuffer frame, ByteBuffer content) {
         try {
-            stream.write(msg);
-            stream.flush();
+            stream.send(frame, content);
         }
         catch (Exception e) {
-            System.exit(0);
+            connectionFailed(e);
         }
     }
 
     /**
-     * For an actual message, get its "length" field to know the actual length
+     * Stop the peer after a connection failed, unless every peer has the complete file and the connection was only
+     * closed for the shutdown. Then the connection thread unwinds to the end of its session instead
+     */
+    private static void connectionFailed(Exception e) {
+        if (!closedAfterCompletion()) System.exit(0);
+        throw new IllegalStateException("Connection closed on shutdown", e);
+    }
+
+    /**
+     * Stop the peer after a piece couldn't be written or read or its completion failed, like a failing write in
+     * storePiece does, unless every peer has the complete file and it happened during the shutdown
+     */
+    private static void storageFailed(Exception e) {
+        if (allHasCompleteFile()) return;
+        writeToLog("Peer " + peerId + " stops as its storage failed: " + e, true);
+        System.exit(0);
+    }
+
+    /**
+     * Check if a connection was closed because every peer has the complete file. A neighbor leaves as soon as it
+     * knows that, while the last messages telling self may still be on the way from other neighbors, so they are
+     * given a little time to arrive
+     */
+    private static boolean closedAfterCompletion() {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(SHUTDOWN_GRACE_MILLIS);
+        while (!allHasCompleteFile()) {
+            if (System.nanoTime() > deadline) return false;
+            LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(10));
+        }
+        return true;
+    }
+
+    /**
+     * Settle the framing of a connection once the handshake from the other side is received
+     * @param remoteExtensions Extensions announced by the other side
      */
-    private static int getMsgLen(ObjectInputStream stream) {
-        byte[] len = new byte[4];
-        int index = 0, length = 0;
+    private static void negotiate(FrameTransport transport, int remoteExtensions) {
         try {
-            while (index < 4) {
-                length = stream.read(len, index, 4 - index);
-                if (length > 0) index += length;
-                else break;
-            }
+            transport.negotiate(localExtensions & remoteExtensions);
         }
         catch (Exception e) {
-            System.exit(0);
+            connectionFailed(e);
         }
-        return ByteBuffer.wrap(len).getInt();
+    }
+
+    /**
+     * For an actual message, get its "length" field to know the actual length
+     */
+    private static int getMsgLen(FrameTransport stream, ByteBuffer buffer) {
+        return receiveMessage(stream, buffer, MessageCodec.LENGTH_FIELD_LEN).getInt();
     }
 
     /**
      * For an actual message, get its "type" field
      */
-    private static char getMsgType(ObjectInputStream stream){
+    private static char getMsgType(FrameTransport stream){
         char type = '0';
         try {
             type = (char)stream.readByte();
         }
         catch (Exception e) {
-            System.exit(0);
+            connectionFailed(e);
         }
         return type;
     }
 
     /**
-     * Receive a message through TCP socket
-     * @param stream The specific input stream for a socket
-     * @param msgLength The length of the receiving message in byte
-     * @return Message body
+     * Receive the content of a PIECE or BLOCK message through TCP socket straight into its target, or drop it
+     * @param target Buffer with room for exactly the content, null if the content is dropped
+     * @param scratch Reusable buffer the dropped content is read through
+     * @return "true" if the content was read into the target
      */
-    private static byte[] receiveMessage(ObjectInputStream stream, int msgLength) {
-        byte[] msg = new byte[msgLength];
-        int index = 0, length = 0;
+    private static boolean receiveContent(FrameTransport stream, ByteBuffer target, ByteBuffer scratch, int msgLength) {
         try {
-            while (index < msgLength) {
-                length = stream.read(msg, index, msgLength - index);
-                if (length > 0) index += length;
-                else break;
+            if (target != null) {
+                stream.readFully(target);
+                return true;
+            }
+            for (int len; msgLength > 0; msgLength -= len) {
+                len = Math.min(msgLength, scratch.capacity());
+                stream.readFully(scratch.array(), 0, len);
             }
         }
         catch (Exception e) {
-            System.exit(0);
+            connectionFailed(e);
+        }
+        return false;
+    }
+
+    /**
+     * Receive a message through TCP socket into a reusable buffer
+     * @param buffer Array backed buffer which is large enough for the message
+     * @return The buffer, holding the message from its position to its limit
+     */
+    private static ByteBuffer receiveMessage(FrameTransport stream, ByteBuffer buffer, int msgLength) {
+        buffer.clear().limit(msgLength);
+        readFully(stream, buffer.array(), msgLength);
+        return buffer;
+    }
+
+    /**
+     * Block until the first "msgLength" bytes of the array are read from the stream
+     */
+    private static void readFully(FrameTransport stream, byte[] msg, int msgLength) {
+        try {
+            stream.readFully(msg, 0, msgLength);
+        }
+        catch (Exception e) {
+            connectionFailed(e);
         }
-        return msg;
     }
 
     /**
      * When receiving BITFIELD message, update the bitfield map
+     * @param payload Buffer holding the bitfield payload
      */
-    private static synchronized void updatePeerBitfieldMap(ObjectInputStream stream, int payloadLen, int destPeerId) {
-        int actualBitfieldLen = peerBitfieldMap.get(peerId).length;
-        boolean[] destBitfield = messageHandler.getBitfieldFromBitfieldMsg(receiveMessage(stream, payloadLen), actualBitfieldLen);
+    private static void updatePeerBitfieldMap(ByteBuffer payload, int destPeerId) {
+        int actualBitfieldLen = peerBitfieldMap.get(peerId).length();
+        Bitfield destBitfield = MessageCodec.decodeBitfield(payload, new Bitfield(actualBitfieldLen));
         peerBitfieldMap.put(destPeerId, destBitfield);
         writeToLog("Peer " + peerId + " receives bitfield message from " + destPeerId, true);
     }
 
     /**
-     * Check bitfield for a specific peer and see if there exist some pieces that it has but self don't have
-     * @return Array of wanted piece indexes
+     * Pick a random piece that a specific peer has and self don't have, straight from the bitfield words, pieces
+     * being checked or written are left out
+     * @param skip Other pieces to leave out
+     * @return Index of the piece, or -1 if there is none
      */
-    private static synchronized List<Integer> getWantedPieceIndex(int destPeerId) {
-        List<Integer> indexList = new ArrayList<>();
-        boolean[] destBitfield = peerBitfieldMap.get(destPeerId), selfBitfield = peerBitfieldMap.get(peerId);
-        for (int i = 0; i < destBitfield.length; i++) {
-            if (destBitfield[i] && !selfBitfield[i]) indexList.add(i);
-        }
-        return indexList;
+    private static int pickWantedPiece(int destPeerId, IntPredicate skip) {
+        Bitfield selfBitfield = peerBitfieldMap.get(peerId);
+        int start = ThreadLocalRandom.current().nextInt(selfBitfield.length());
+        return peerBitfieldMap.get(destPeerId).pickNotIn(selfBitfield, start, i -> completingPieceSet.contains(i) || skip.test(i));
+    }
+
+    /**
+     * Check if a specific peer has some piece that self don't have, without listing them
+     */
+    private static boolean hasWantedPiece(int destPeerId) {
+        return peerBitfieldMap.get(destPeerId).hasAnyNotIn(peerBitfieldMap.get(peerId));
+    }
+
+    /**
+     * Tell a neighbor whether self is interested in its pieces
+     */
+    private static void sendInterest(PeerConnection connection, int destPeerId) {
+        if (hasWantedPiece(destPeerId)) sendMessage(connection, MessageCodec.encodeInterested(frameBuffer()));
+        else sendMessage(connection, MessageCodec.encodeNotInterested(frameBuffer()));
     }
 
     /**
      * Check if self already have the complete file
      */
-    private static synchronized boolean hasCompleteFile() {
-        boolean[] bitfield = peerBitfieldMap.get(peerId);
-        for (boolean bit : bitfield) {
-            if (!bit) return false;
-        }
-        return true;
+    private static boolean hasCompleteFile() {
+        return peerBitfieldMap.get(peerId).isComplete();
     }
 
     /**
@@ -558,16 +1045,21 @@ public class peerProcess {
      */
     private static synchronized boolean allHasCompleteFile() {
         if (peerBitfieldMap.size() != peerNum) return false;
-        else if (sentHavePieceSet.size() < filePieces.size()) return false;
-        for (int peer : peerBitfieldMap.keySet()) {
-            boolean[] bitfield = peerBitfieldMap.get(peer);
-            for (boolean bit : bitfield) {
-                if (!bit) return false;
-            }
+        else if (!sentHaveBitfield.isComplete()) return false;
+        for (Bitfield bitfield : peerBitfieldMap.values()) {
+            if (!bitfield.isComplete()) return false;
         }
         return true;
     }
 
+    /**
+     * Check if the outbound queue to a neighbor is congested
+     */
+    private static boolean isCongested(int destPeerId) {
+        PeerConnection connection = peerSocketMap.get(destPeerId);
+        return connection != null && connection.isCongested();
+    }
+
     /**
      * Randomly select some peers from candidate list
      * @param num Number of peers to be picked out
@@ -589,8 +1081,9 @@ public class peerProcess {
      * @param content Actual content
      * @param append "true" for appending, "false" for overwriting
      */
-    private static synchronized void writeToLog(String content, Boolean append){
+    private static void writeToLog(String content, Boolean append){
         String fileName = "../peer_" + peerId + ".log";
+        logLock.lock();
         try {
             FileWriter fw = new FileWriter(fileName, append);
 
@@ -607,6 +1100,41 @@ public class peerProcess {
         catch (Exception e) {
             e.printStackTrace();
         }
+        finally {
+            logLock.unlock();
+        }
+    }
+
+    /**
+     * Take back the pieces a previous run of this peer stored in the partial file, as listed by the journal. They are
+     * announced in the first bitfield message like the pieces of a seed, so no 'have' message is due for them
+     * @param hashes Piece hashes the pieces are checked against, null to check them against the journal only
+     */
+    private static void restorePieces(Bitfield bitfield, PieceHashes hashes) throws IOException {
+        Map<Integer, Integer> entries = journal.read(bitfield.length());
+
+        // Checking the content catches a partial file changed or damaged since, against the piece hashes if there
+        // are, as a change keeping the CRC32 of the journal still fails them
+        List<Integer> restored = new ArrayList<>(entries.keySet());
+        if (resumeVerify) {
+            restored = entries.keySet().parallelStream()
+                    .filter(i -> hashes != null ? hashes.matches(i, storage.piece(i)) : ResumeJournal.checksum(storage.piece(i)) == entries.get(i))
+                    .collect(Collectors.toList());
+        }
+        for (int pieceIndex : restored) {
+            bitfield.set(pieceIndex);
+            sentHaveBitfield.set(pieceIndex);
+        }
+        Metrics.counter("resumeRestoredPieces").add(restored.size());
+        Metrics.counter("resumeRejectedPieces").add(entries.size() - restored.size());
+        writeToLog("Peer " + peerId + " restored " + restored.size() + " pieces from the previous run and dropped " + (entries.size() - restored.size()) + " which failed verification.", true);
+
+        if (bitfield.isComplete()) {
+            fileCompleted.set(true);
+            storage.moveTo(Paths.get(fileName));
+            journal.delete();
+            writeToLog("Peer " + peerId + " has downloaded the complete file", true);
+        }
     }
 
     /**
@@ -632,50 +1160,100 @@ public class peerProcess {
         }
 
         // Initialize self bitfield
-        int pieceNum = fileSize % pieceSize == 0 ? fileSize / pieceSize : fileSize / pieceSize + 1;
-        boolean[] bitfield = new boolean[pieceNum];
-        if (selfInfo.hasCompleteFile == 1) Arrays.fill(bitfield, true);
+        long pieceCount = fileSize % pieceSize == 0 ? fileSize / pieceSize : fileSize / pieceSize + 1;
+        if (pieceCount > Integer.MAX_VALUE) throw new IOException("FileSize " + fileSize + " needs a larger PieceSize");
+        int pieceNum = (int)pieceCount;
+        Bitfield bitfield = selfInfo.hasCompleteFile == 1 ? Bitfield.full(pieceNum) : new Bitfield(pieceNum);
+        sentHaveBitfield = selfInfo.hasCompleteFile == 1 ? Bitfield.full(pieceNum) : new Bitfield(pieceNum);
 
         // Store in the map
         peerBitfieldMap.put(peerId, bitfield);
 
-        // Write bitfield into log file
-        StringBuilder content = new StringBuilder("Peer " + peerId + " set bitfield to [");
-        for (boolean bool : bitfield) content = bool ? content.append(1).append(", ") : content.append(0).append(", ");
-        content.setCharAt(content.length() - 2, ']');
-        writeToLog(content.toString(), true);
+        // Every non-piece message, including the bitfield message, fits in one frame buffer
+        frameBufferLen = Math.max(MessageCodec.HANDSHAKE_LEN, MessageCodec.HEADER_LEN + MessageCodec.bitfieldPayloadLen(pieceNum));
+
+        // The content is one file, or the files of a directory as listed in the file list, which a seed without it
+        // makes from its directory
+        Path filePath = Paths.get(fileName), partPath = Paths.get(fileName + ".part");
+        FileLayout layout = FileLayout.single(fileSize);
+        if (fileList != null) {
+            Path listPath = Paths.get(fileList);
+            if (selfInfo.hasCompleteFile == 1 && !Files.exists(listPath)) {
+                layout = FileLayout.scan(filePath);
+                layout.write(listPath);
+                writeToLog("Peer " + peerId + " wrote the list of " + layout.entries().size() + " files to " + fileList, true);
+            }
+            else layout = FileLayout.read(listPath);
+            if (layout.totalLength() != fileSize) throw new IOException(fileList + " adds up to " + layout.totalLength() + " bytes instead of FileSize");
+        }
 
-        // Initialize file pieces
+        // Open the content in its storage, a seed serves it as it is and a leecher downloads into a partial file or
+        // directory next to it, which is given its full length first and only takes the real name once it is
+        // complete. No 'have' message is due for the pieces a seed starts with
         if (selfInfo.hasCompleteFile == 1) {
-            int rtnLen = 0;
-            FileInputStream stream = new FileInputStream(fileName);
-            byte[] buffer = new byte[pieceSize];
-            while ((rtnLen = stream.read(buffer)) != -1) {
-                byte[] tmpBuf = new byte[rtnLen];
-                if (tmpBuf.length >= 0) System.arraycopy(buffer, 0, tmpBuf, 0, tmpBuf.length);
-                filePieces.add(tmpBuf);
-            }
+            storage = PieceStorage.open(storageKind, filePath, layout, pieceSize, false, false);
         }
         else {
-            for (int i = 0; i < pieceNum; i++) {
-                filePieces.add(null);
+            // A journal only describes the partial file it was written with. A run stopped between giving the complete
+            // file its name and deleting the journal leaves the journal next to the complete file, which goes back
+            // under the partial name so that the journal describes it again
+            Path journalPath = Paths.get(fileName + ".resume");
+            if (resume && !Files.exists(partPath) && Files.exists(journalPath) && Files.exists(filePath)) {
+                Files.move(filePath, partPath);
+                writeToLog("Peer " + peerId + " found the journal next to the complete file and resumes from it.", true);
+            }
+            if (!Files.exists(partPath)) Files.deleteIfExists(journalPath);
+            long openStart = System.nanoTime();
+            storage = PieceStorage.open(storageKind, partPath, layout, pieceSize, true, preallocate.equals("full"));
+            writeToLog("Peer " + peerId + " prepared its " + preallocate + " partial file in " + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - openStart) + " ms.", true);
+            if (resume) journal = new ResumeJournal(journalPath);
+        }
+
+        // Downloaded pieces are checked against the piece hashes, a seed without them makes them from its file
+        PieceHashes hashes = null;
+        if (hashFile != null) {
+            Path hashPath = Paths.get(hashFile);
+            if (selfInfo.hasCompleteFile == 1 && !Files.exists(hashPath)) {
+                hashes = PieceHashes.compute(storage, fileSize, pieceSize);
+                hashes.write(hashPath);
+                writeToLog("Peer " + peerId + " wrote the piece hashes to " + hashFile, true);
+            }
+            else hashes = PieceHashes.read(hashPath);
+            if (hashes.fileSize() != fileSize || hashes.pieceSize() != pieceSize) {
+                throw new IOException(hashFile + " is made for another file size or piece size");
             }
+            verifier = new PieceVerifier(hashes, verifyThreads, verifyThreads * 2);
         }
+        if (journal != null) restorePieces(bitfield, hashes);
 
-        // Start the server listening thread
-        Thread serverListenThread = new Thread(new ServerListenThread(selfInfo.port));
-        serverListenThread.start();
+        if (pieceCacheBytes > 0) pieceCache = new PieceCache(storage, pieceCacheBytes, pieceSize);
+        if (useIoScheduler) ioScheduler = new IoScheduler(storage, pieceSize, ioSyncBytes, ioSyncMillis, peerProcess::storageFailed);
+        else if (useAsyncStorage) asyncStorage = new AsyncStorage(storage, pieceSize, storageThreads, peerProcess::storageFailed);
 
-        // Start several client threads
-        for (PeerInfo pInfo : serverList) {
-            Thread clientThread = new Thread(new ClientThread(pInfo));
-            threadList.add(clientThread);
-            clientThread.start();
+        // Write bitfield into log file
+        writeToLog("Peer " + peerId + " set bitfield to " + bitfield, true);
+
+        if (networkEngine.equals("reactor")) {
+            // Multiplex all the connections on a few reactor threads
+            reactorEngine = new ReactorEngine(reactorThreadNum, new ReactorHandler(), peerId, localExtensions, frameBufferLen, sendQueueBytes, coalesceNanos);
+            reactorEngine.listen(selfInfo.port, serverConnectionNum);
+            for (PeerInfo pInfo : serverList) reactorEngine.connect(pInfo.address, pInfo.port);
+        }
+        else {
+            // Start the server listening thread
+            PeerThreads.start(new ServerListenThread(selfInfo.port), "listener", false);
+
+            // Start several client threads
+            for (PeerInfo pInfo : serverList) {
+                threadList.add(PeerThreads.start(new ClientThread(pInfo), "client-" + pInfo.port, false));
+            }
         }
 
-        // Start a new thread for timer task to periodically select preferred neighbors
-        Timer preferredNeighborSelectionTask = new Timer();
-        preferredNeighborSelectionTask.schedule(new TimerTask() {
+        // Timer tasks share a few timer threads, virtual ones in virtual thread mode
+        ScheduledExecutorService timer = Executors.newScheduledThreadPool(4, PeerThreads.factory("timer", false));
+
+        // Periodically select preferred neighbors
+        timer.scheduleWithFixedDelay(new Runnable() {
             @Override
             public void run() {
                 if (peerBitfieldMap.size() == peerNum) {
@@ -683,8 +1261,10 @@ public class peerProcess {
 
                     // If self don't have the complete file
                     if (!hasCompleteFile()) {
+                        // Neighbors whose outbound queue is congested can't take more pieces now, they come last
                         List<Map.Entry<Integer, Double>> list = new ArrayList<>(downloadRateMap.entrySet());
                         list.sort((o1, o2) -> o2.getValue().compareTo(o1.getValue()));
+                        list.sort(Comparator.comparing(o -> isCongested(o.getKey())));
 
                         // Then select peers that are interested and with top download rate
                         for (Map.Entry<Integer, Double> integerIntegerEntry : list) {
@@ -695,11 +1275,16 @@ public class peerProcess {
                         }
                     }
 
-                    // Otherwise randomly select preferred neighbors
+                    // Otherwise randomly select preferred neighbors, neighbors with a congested outbound queue only if
+                    // there are not enough others
                     else {
-                        List<Integer> candidates = new ArrayList<>(interestNeighborSet);
-                        List<Integer> neighbors = randomlySelection(candidates, preferredNeighborNum);
-                        tmpNeighborSet.addAll(neighbors);
+                        List<Integer> candidates = new ArrayList<>(), congested = new ArrayList<>();
+                        for (int destPeerId : new ArrayList<>(interestNeighborSet)) {
+                            if (isCongested(destPeerId)) congested.add(destPeerId);
+                            else candidates.add(destPeerId);
+                        }
+                        tmpNeighborSet.addAll(randomlySelection(candidates, preferredNeighborNum));
+                        tmpNeighborSet.addAll(randomlySelection(congested, preferredNeighborNum - tmpNeighborSet.size()));
                     }
 
                     // Write into log
@@ -716,14 +1301,14 @@ public class peerProcess {
                     // Send "unchoke" message to those preferred neighbors
                     for (int peer : tmpNeighborSet) {
                         if (!preferredNeighborsSet.contains(peer)) {
-                            sendMessage(peerSocketMap.get(peer), messageHandler.generateUnchokeMessage());
+                            sendMessage(peerSocketMap.get(peer), MessageCodec.encodeUnchoke(frameBuffer()));
                         }
                     }
 
                     // Send "choke" message
                     for (int peer : preferredNeighborsSet) {
                         if (!tmpNeighborSet.contains(peer) && optimisticallyNeighbor != null && optimisticallyNeighbor != peer) {
-                            sendMessage(peerSocketMap.get(peer), messageHandler.generateChokeMessage());
+                            sendMessage(peerSocketMap.get(peer), MessageCodec.encodeChoke(frameBuffer()));
                         }
                     }
 
@@ -732,20 +1317,19 @@ public class peerProcess {
                     preferredNeighborsSet = tmpNeighborSet;
                 }
             }
-        }, 100, unchokingInterval * 1000);
+        }, 100, unchokingInterval * 1000, TimeUnit.MILLISECONDS);
 
-        // Start a new thread for timer task to periodically select optimistic neighbor
-        Timer optimisticNeighborSelectionTask = new Timer();
-        optimisticNeighborSelectionTask.schedule(new TimerTask() {
+        // Periodically select optimistic neighbor
+        timer.scheduleWithFixedDelay(new Runnable() {
             @Override
             public void run() {
                 if (peerBitfieldMap.size() == peerNum) {
                     Set<Integer> tmpNeighborSet = preferredNeighborsSet, tmpInterestSet = interestNeighborSet;
                     List<Integer> candidates = new ArrayList<>();
 
-                    // Collect those dest peers that are interested and choked
+                    // Collect those dest peers that are interested and choked, and can take more pieces now
                     for (int destPeerId : peerBitfieldMap.keySet()) {
-                        if (!tmpNeighborSet.contains(destPeerId) && tmpInterestSet.contains(destPeerId)) {
+                        if (!tmpNeighborSet.contains(destPeerId) && tmpInterestSet.contains(destPeerId) && !isCongested(destPeerId)) {
                             candidates.add(destPeerId);
                         }
                     }
@@ -755,32 +1339,60 @@ public class peerProcess {
                     if (optNeighbor.size() == 0) optimisticallyNeighbor = null;
                     else {
                         optimisticallyNeighbor = optNeighbor.get(0);
-                        sendMessage(peerSocketMap.get(optimisticallyNeighbor), messageHandler.generateUnchokeMessage());
+                        sendMessage(peerSocketMap.get(optimisticallyNeighbor), MessageCodec.encodeUnchoke(frameBuffer()));
                         writeToLog("Peer " + peerId + " has the optimistic neighbor " + optimisticallyNeighbor, true);
                     }
                 }
             }
-        }, 0, optimisticUnchokingInterval * 1000);
+        }, 0, optimisticUnchokingInterval * 1000, TimeUnit.MILLISECONDS);
+
+        // Periodically announce the pieces waiting for HAVE_BATCH messages
+        if (haveBatchMillis > 0) {
+            timer.scheduleWithFixedDelay(new Runnable() {
+                @Override
+                public void run() {
+                    for (PeerSession session : sessionMap.values()) flushHaves(session);
+                }
+            }, haveBatchMillis, haveBatchMillis, TimeUnit.MILLISECONDS);
+        }
+
+        // Sync the journal of stored pieces in batches
+        if (journal != null) {
+            timer.scheduleWithFixedDelay(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        journal.sync(storage);
+                    }
+                    catch (Exception e) {
+                        System.exit(0);
+                    }
+                }
+            }, resumeSyncMillis, resumeSyncMillis, TimeUnit.MILLISECONDS);
+        }
 
         // Wait until all the peers have the complete file
         while (true) {
             if (allHasCompleteFile()) {
+                // Report before the connections are closed, a failing connection may still end the process
+                writeToLog("Peer " + peerId + " metrics: " + Metrics.report(), true);
+                timer.shutdownNow();
+                if (verifier != null) verifier.shutdown();
+                if (ioScheduler != null) ioScheduler.shutdown();
+                if (asyncStorage != null) asyncStorage.shutdown();
+
+                // Every piece was written as it arrived and the complete file was renamed into place then
+                storage.close();
+                if (bufferDebug) writeToLog("Peer " + peerId + " buffers: " + pieceArena.leakReport(), true);
+
+                // Let the writers send what is queued, the last 'have' messages tell the neighbors they are done
+                for (PeerConnection connection : peerSocketMap.values()) {
+                    if (connection instanceof FrameTransport) ((FrameTransport)connection).finish();
+                }
                 for (Thread thread : threadList) {
                     thread.interrupt();
                 }
-                preferredNeighborSelectionTask.cancel();
-                optimisticNeighborSelectionTask.cancel();
-
-                // Save file pieces into a complete file
-                if (selfInfo.hasCompleteFile == 0) {
-                    StringBuilder fileContent = new StringBuilder();
-                    for (byte[] piece : filePieces) {
-                        fileContent.append(new String(piece));
-                    }
-                    FileOutputStream stream = new FileOutputStream(new File(fileName));
-                    stream.write(fileContent.toString().getBytes());
-                }
-
+                if (reactorEngine != null) reactorEngine.shutdown();
                 break;
             }
         }
@@ -796,20 +1408,52 @@ public class peerProcess {
         unchokingInterval = Integer.parseInt(props.getProperty("UnchokingInterval"));
         optimisticUnchokingInterval = Integer.parseInt(props.getProperty("OptimisticUnchokingInterval"));
         fileName = props.getProperty("FileName");
-        fileSize = Integer.parseInt(props.getProperty("FileSize"));
+        fileSize = Long.parseLong(props.getProperty("FileSize"));
+        fileList = props.getProperty("FileList");
         pieceSize = Integer.parseInt(props.getProperty("PieceSize"));
+        networkEngine = props.getProperty("NetworkEngine", "blocking");
+        reactorThreadNum = Integer.parseInt(props.getProperty("ReactorThreads", "2"));
+        sendQueueBytes = Long.parseLong(props.getProperty("SendQueueBytes", "1048576"));
+        coalesceNanos = TimeUnit.MICROSECONDS.toNanos(Long.parseLong(props.getProperty("CoalesceMicros", "200")));
+        haveBatchMillis = Integer.parseInt(props.getProperty("HaveBatchMillis", "0"));
+        bufferDebug = Boolean.parseBoolean(props.getProperty("BufferDebug", "false"));
+        BufferArena.setDebug(bufferDebug);
+        resume = Boolean.parseBoolean(props.getProperty("Resume", "false"));
+        resumeVerify = Boolean.parseBoolean(props.getProperty("ResumeVerify", "false"));
+        resumeSyncMillis = Integer.parseInt(props.getProperty("ResumeSyncMillis", "1000"));
+        hashFile = props.getProperty("HashFile");
+        verifyThreads = Integer.parseInt(props.getProperty("VerifyThreads", "0"));
+        pieceCacheBytes = Long.parseLong(props.getProperty("PieceCacheBytes", "0"));
+        storageKind = props.getProperty("Storage", "mmap");
+        // The journal lists pieces as written, heap storage only writes the files once the content is complete
+        if (resume && storageKind.equals("heap")) throw new IllegalArgumentException("Resume doesn't work with Storage heap");
+        preallocate = props.getProperty("Preallocate", "sparse");
+        useIoScheduler = Boolean.parseBoolean(props.getProperty("IoScheduler", "false"));
+        ioSyncBytes = Long.parseLong(props.getProperty("IoSyncBytes", "67108864"));
+        ioSyncMillis = Integer.parseInt(props.getProperty("IoSyncMillis", "1000"));
+        useAsyncStorage = Boolean.parseBoolean(props.getProperty("AsyncStorage", "false"));
+        storageThreads = Integer.parseInt(props.getProperty("StorageThreads", "2"));
+        virtualThreads = Boolean.parseBoolean(props.getProperty("VirtualThreads", "false"));
+        if (verifyThreads <= 0) verifyThreads = Runtime.getRuntime().availableProcessors();
+        pieceArena = new BufferArena("pieceBuffers", pieceSize);
+        String depth = props.getProperty("PipelineDepth", "1");
+        pipelineDepth = depth.equals("auto") ? 0 : Math.max(1, Integer.parseInt(depth));
+        blockSize = Math.min(MessageCodec.MAX_BLOCK_LEN, Integer.parseInt(props.getProperty("BlockSize", "16384")));
 
         // Initial other properties
         threadList = new Vector<>();
-        filePieces = new Vector<>();
         peerBitfieldMap = new ConcurrentHashMap<>();
         downloadRateMap = new ConcurrentHashMap<>();
         interestNeighborSet = Collections.synchronizedSet(new HashSet<>());
         preferredNeighborsSet = Collections.synchronizedSet(new HashSet<>());
         peerSocketMap = new ConcurrentHashMap<>();
-        sentHavePieceSet = Collections.synchronizedSet(new HashSet<>());
+        sessionMap = new ConcurrentHashMap<>();
+        inFlightPieceSet = ConcurrentHashMap.newKeySet();
+        assemblyMap = new ConcurrentHashMap<>();
+        completingPieceSet = ConcurrentHashMap.newKeySet();
 
-        messageHandler = new MessageHandler();
+        sendBuffer = ThreadLocal.withInitial(() -> ByteBuffer.allocate(frameBufferLen));
+        localExtensions = 1 << MessageCodec.EXT_RAW_FRAMING | 1 << MessageCodec.EXT_BLOCK_REQUESTS | 1 << MessageCodec.EXT_HAVE_BATCH;
 
         // Write parameters into log file
         String spaces = "\t\t\t\t\t";
@@ -819,8 +1463,36 @@ public class peerProcess {
                 spaces + "\t- OptimisticUnchokingInterval: " + optimisticUnchokingInterval + "\n" +
                 spaces + "\t- FileName: " + fileName + "\n" +
                 spaces + "\t- FileSize: " + fileSize + "\n" +
-                spaces + "\t- PieceSize: " + pieceSize;
+                spaces + "\t- FileList: " + fileList + "\n" +
+                spaces + "\t- PieceSize: " + pieceSize + "\n" +
+                spaces + "\t- NetworkEngine: " + networkEngine + "\n" +
+                spaces + "\t- PipelineDepth: " + depth + "\n" +
+                spaces + "\t- BlockSize: " + blockSize + "\n" +
+                spaces + "\t- SendQueueBytes: " + sendQueueBytes + "\n" +
+                spaces + "\t- CoalesceMicros: " + TimeUnit.NANOSECONDS.toMicros(coalesceNanos) + "\n" +
+                spaces + "\t- HaveBatchMillis: " + haveBatchMillis + "\n" +
+                spaces + "\t- BufferDebug: " + bufferDebug + "\n" +
+                spaces + "\t- Resume: " + resume + "\n" +
+                spaces + "\t- ResumeVerify: " + resumeVerify + "\n" +
+                spaces + "\t- ResumeSyncMillis: " + resumeSyncMillis + "\n" +
+                spaces + "\t- HashFile: " + hashFile + "\n" +
+                spaces + "\t- VerifyThreads: " + verifyThreads + "\n" +
+                spaces + "\t- PieceCacheBytes: " + pieceCacheBytes + "\n" +
+                spaces + "\t- Storage: " + storageKind + "\n" +
+                spaces + "\t- Preallocate: " + preallocate + "\n" +
+                spaces + "\t- IoScheduler: " + useIoScheduler + "\n" +
+                spaces + "\t- IoSyncBytes: " + ioSyncBytes + "\n" +
+                spaces + "\t- IoSyncMillis: " + ioSyncMillis + "\n" +
+                spaces + "\t- AsyncStorage: " + useAsyncStorage + "\n" +
+                spaces + "\t- StorageThreads: " + storageThreads + "\n" +
+                spaces + "\t- VirtualThreads: " + virtualThreads;
         writeToLog(content, false);
+
+        // Every thread made from now on is virtual if asked for and the runtime has them
+        if (virtualThreads) {
+            if (PeerThreads.useVirtual()) writeToLog("Peer " + peerId + " uses virtual threads", true);
+            else writeToLog("Peer " + peerId + " can't use virtual threads on this runtime, it uses platform threads", true);
+        }
     }
 
     /**
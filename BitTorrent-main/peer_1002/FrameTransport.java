@@ -0,0 +1,250 @@
+import java.io.*;
+import java.net.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.util.concurrent.atomic.*;
+import java.util.concurrent.locks.*;
+
+/**
+ * @description Framed byte transport for one TCP connection with a neighbor.
+ * A connection always opens with object streams, exactly like the original peers do, so that the handshake can be
+ * exchanged with any peer. If both handshakes announce raw framing, both sides drop the object streams right after
+ * the handshake and carry the length/type/payload frames over plain buffered socket streams, without the
+ * serialization stream header, block-data framing and extra copies. Otherwise the object streams are kept.
+ * After the handshake, messages are queued and written by a writer thread owned by the connection, so threads
+ * sending to a slow neighbor never wait for its socket.
+ */
+public class FrameTransport implements PeerConnection {
+    private static final int BUFFER_SIZE = 65536;
+
+    private final Socket socket;
+    private DataInputStream inputStream;
+    private OutputStream outputStream;
+    private boolean raw = false;
+
+    private final OutboundQueue outbound;
+    private final long coalesceNanos;
+    private final ReentrantLock handshakeLock = new ReentrantLock(); // Not a monitor, a virtual thread blocked on the socket would pin its carrier
+    private volatile Thread writer;
+    private volatile boolean finishing = false, closed = false;
+
+    // Staging arrays for content in direct buffers, which streams can't read into or write from, one for the
+    // reading thread and one for the writer thread
+    private byte[] readTransfer, writeTransfer;
+
+    /**
+     * Open object streams on a connected socket
+     * @param initiator "true" if this side made the connection, which decides the order of opening the streams
+     * @param queueCapacity Queued bytes above which the connection is congested
+     * @param coalesceNanos Longest time control messages wait for more messages to be written with them
+     */
+    public FrameTransport(Socket socket, boolean initiator, long queueCapacity, long coalesceNanos) throws IOException {
+        this.socket = socket;
+        this.outbound = new OutboundQueue(queueCapacity);
+        this.coalesceNanos = coalesceNanos;
+        // The object input stream blocks until the stream header from the other side arrives
+        if (initiator) {
+            outputStream = new ObjectOutputStream(socket.getOutputStream());
+            inputStream = new DataInputStream(new ObjectInputStream(socket.getInputStream()));
+        }
+        else {
+            inputStream = new DataInputStream(new ObjectInputStream(socket.getInputStream()));
+            outputStream = new ObjectOutputStream(socket.getOutputStream());
+        }
+    }
+
+    /**
+     * Settle the framing after both handshake messages are exchanged, then start the writer thread
+     * @param extensions Extensions announced by both sides
+     */
+    public void negotiate(int extensions) throws IOException {
+        handshakeLock.lock();
+        try {
+            if (writer != null) return;
+            if ((extensions & (1 << MessageCodec.EXT_RAW_FRAMING)) != 0) {
+                // The object input stream has consumed exactly the handshake block, so the socket streams continue right after it
+                outputStream.flush();
+                inputStream = new DataInputStream(new BufferedInputStream(socket.getInputStream(), BUFFER_SIZE));
+                outputStream = new BufferedOutputStream(socket.getOutputStream(), BUFFER_SIZE);
+                socket.setTcpNoDelay(true);
+                raw = true;
+            }
+            writer = PeerThreads.start(this::drain, "writer-" + socket.getPort(), false);
+        }
+        finally {
+            handshakeLock.unlock();
+        }
+    }
+
+    /**
+     * Check if the connection carries raw frames
+     */
+    public boolean isRaw() {
+        return raw;
+    }
+
+    /**
+     * The handshake is written directly, everything after it goes through the queue
+     */
+    @Override
+    public void send(ByteBuffer frame, ByteBuffer content) throws IOException {
+        Thread writer = this.writer;
+        if (writer == null) {
+            handshakeLock.lock();
+            try {
+                outputStream.write(frame.array(), 0, frame.position());
+                if (content != null) writeContent(content);
+                outputStream.flush();
+            }
+            finally {
+                handshakeLock.unlock();
+            }
+            return;
+        }
+        outbound.add(frame, content);
+        LockSupport.unpark(writer);
+    }
+
+    /**
+     * Only raw framing on a socket opened through a channel can hand file regions to the kernel
+     */
+    @Override
+    public boolean sendFileRegion(ByteBuffer frame, FileChannel file, long position, int count) {
+        if (!raw || socket.getChannel() == null) return false;
+        outbound.addFileRegion(frame, file, position, count);
+        LockSupport.unpark(writer);
+        return true;
+    }
+
+    @Override
+    public boolean isCongested() {
+        return outbound.isCongested();
+    }
+
+    @Override
+    public void setDrainListener(Runnable listener) {
+        outbound.setDrainListener(listener);
+    }
+
+    /**
+     * Let the writer thread stop once everything queued so far is written, and wait for it, so the last messages
+     * go out even when the writer is a daemon thread
+     */
+    public void finish() throws InterruptedException {
+        finishing = true;
+        Thread writer = this.writer;
+        if (writer == null) return;
+        LockSupport.unpark(writer);
+        writer.join();
+    }
+
+    /**
+     * Writer thread, writes the queued messages in order. With raw framing on a socket opened through a channel,
+     * many messages go into one gathering write on the channel, otherwise they go through the output stream which
+     * is flushed when the queue runs empty. Control messages wait a little for more messages to join them
+     */
+    private void drain() {
+        SocketChannel channel = raw ? socket.getChannel() : null;
+        ByteBuffer[] gathered = new ByteBuffer[OutboundQueue.GATHER_MAX];
+        boolean unflushed = false;
+        try {
+            while (!closed) {
+                OutboundQueue.Entry entry = outbound.peek();
+                if (entry == null) {
+                    if (unflushed) {
+                        outputStream.flush();
+                        OutboundQueue.countWrite();
+                        unflushed = false;
+                    }
+                    outbound.drained();
+                    if (finishing && outbound.peek() == null) return;
+                    LockSupport.park(this);
+                    continue;
+                }
+
+                long delay = outbound.flushDelay(coalesceNanos);
+                if (delay > 0 && !finishing) {
+                    LockSupport.parkNanos(this, delay);
+                }
+                else if (channel != null) {
+                    // A blocking channel takes everything, only a file region may need more than one transfer
+                    while (outbound.writeTo(channel, gathered));
+                }
+                else {
+                    outputStream.write(entry.header.array(), 0, entry.header.limit());
+                    if (entry.content != null) writeContent(entry.content);
+                    outbound.remove();
+                    unflushed = true;
+                }
+            }
+        }
+        catch (IOException e) {
+            // Closing the socket fails the reading side too, which decides whether the peer has to stop, a neighbor
+            // leaving after every peer has the complete file is no failure
+            try {
+                close();
+            }
+            catch (IOException ignored) {
+            }
+        }
+    }
+
+    /**
+     * Write content through the output stream, moving the buffer position to its limit
+     */
+    private void writeContent(ByteBuffer content) throws IOException {
+        if (content.hasArray()) {
+            outputStream.write(content.array(), content.arrayOffset() + content.position(), content.remaining());
+            content.position(content.limit());
+            return;
+        }
+        if (writeTransfer == null) writeTransfer = new byte[BUFFER_SIZE];
+        while (content.hasRemaining()) {
+            int len = Math.min(content.remaining(), writeTransfer.length);
+            content.get(writeTransfer, 0, len);
+            outputStream.write(writeTransfer, 0, len);
+        }
+    }
+
+    void write(byte[] b, int off, int len) throws IOException {
+        outputStream.write(b, off, len);
+    }
+
+    void flush() throws IOException {
+        outputStream.flush();
+    }
+
+    /**
+     * Block until exactly "len" bytes are read
+     */
+    public void readFully(byte[] b, int off, int len) throws IOException {
+        inputStream.readFully(b, off, len);
+    }
+
+    /**
+     * Block until the buffer is filled from its position to its limit
+     */
+    public void readFully(ByteBuffer dst) throws IOException {
+        if (dst.hasArray()) {
+            inputStream.readFully(dst.array(), dst.arrayOffset() + dst.position(), dst.remaining());
+            dst.position(dst.limit());
+            return;
+        }
+        if (readTransfer == null) readTransfer = new byte[BUFFER_SIZE];
+        while (dst.hasRemaining()) {
+            int len = Math.min(dst.remaining(), readTransfer.length);
+            inputStream.readFully(readTransfer, 0, len);
+            dst.put(readTransfer, 0, len);
+        }
+    }
+
+    public byte readByte() throws IOException {
+        return inputStream.readByte();
+    }
+
+    public void close() throws IOException {
+        closed = true;
+        LockSupport.unpark(writer);
+        socket.close();
+    }
+}
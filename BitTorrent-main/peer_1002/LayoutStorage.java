@@ -0,0 +1,128 @@
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.locks.*;
+
+/**
+ * @description Base of the storage backends, keeping the files of the layout as segments of the piece space. Which
+ * pieces are there is only tracked by the bitfield of the peer. Each backend opens a file its own way, empty files are created but take no room
+ * in the piece space. Files a backend writes into are given their full length before the first piece arrives,
+ * either sparse, or fully reserved by writing every block once, so pieces written in random order don't leave the
+ * file fragmented.
+ */
+public abstract class LayoutStorage implements PieceStorage {
+    private static final int RESERVE_CHUNK_LEN = 1 << 20;
+
+    protected Path path;
+    protected final FileLayout layout;
+    protected final Segment[] segments;
+    protected final long fileSize;
+    protected final int pieceSize;
+    protected final boolean reserve;
+    private final long[] segmentStarts;
+    protected final ReentrantLock moveLock = new ReentrantLock(); // Held over disk I/O, so not a monitor
+
+    /**
+     * @param reserve "true" to reserve the blocks of files written into, "false" to leave them sparse
+     */
+    protected LayoutStorage(Path path, FileLayout layout, int pieceSize, boolean writable, boolean reserve) throws IOException {
+        this.path = path;
+        this.layout = layout;
+        this.fileSize = layout.totalLength();
+        this.pieceSize = pieceSize;
+        this.reserve = reserve;
+
+        List<Segment> segmentList = new ArrayList<>();
+        boolean single = layout.entries().size() == 1;
+        for (FileLayout.Entry entry : layout.entries()) {
+            Path filePath = FileLayout.resolve(path, entry);
+            Segment segment = open(filePath, entry, writable, single);
+            if (segment.length > 0) segmentList.add(segment);
+        }
+        segments = segmentList.toArray(new Segment[0]);
+        segmentStarts = new long[segments.length];
+        for (int i = 0; i < segments.length; i++) segmentStarts[i] = segments[i].start;
+    }
+
+    /**
+     * Open one file of the layout, called from the constructor before the fields of the backend are set
+     * @param single "true" if the file is the whole content
+     */
+    protected abstract Segment open(Path filePath, FileLayout.Entry entry, boolean writable, boolean single) throws IOException;
+
+    /**
+     * Give a file written into its full length, unless it has it already, which keeps what a previous run wrote
+     */
+    protected void preallocate(Path filePath, long length) throws IOException {
+        try (RandomAccessFile file = new RandomAccessFile(filePath.toFile(), "rw")) {
+            long size = file.length();
+            if (size >= length) return;
+            if (!reserve) {
+                file.setLength(length);
+                return;
+            }
+            FileChannel channel = file.getChannel();
+            ByteBuffer zeros = ByteBuffer.allocate((int)Math.min(RESERVE_CHUNK_LEN, length - size));
+            for (long position = size; position < length; ) {
+                zeros.clear().limit((int)Math.min(zeros.capacity(), length - position));
+                while (zeros.hasRemaining()) position += channel.write(zeros, position);
+            }
+        }
+    }
+
+    /**
+     * Index of the segment holding a position of the piece space
+     */
+    protected int segmentIndex(long position) {
+        int i = Arrays.binarySearch(segmentStarts, position);
+        return i >= 0 ? i : -i - 2;
+    }
+
+    @Override
+    public Segment segmentOf(long position, int len) {
+        Segment segment = segments[segmentIndex(position)];
+        return segment.channel != null && position + len <= segment.start + segment.length ? segment : null;
+    }
+
+    @Override
+    public int pieceLen(int pieceIndex) {
+        return (int)Math.min(pieceSize, fileSize - (long)pieceIndex * pieceSize);
+    }
+
+    @Override
+    public ByteBuffer piece(int pieceIndex) {
+        return region((long)pieceIndex * pieceSize, pieceLen(pieceIndex));
+    }
+
+    /**
+     * Make the written pieces durable and give the file or directory its final name in one step, so content under
+     * that name is always complete. The storage stays usable afterwards
+     */
+    @Override
+    public void moveTo(Path target) throws IOException {
+        moveLock.lock();
+        try {
+            if (path.equals(target)) return;
+            flush();
+            try {
+                Files.move(path, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            }
+            catch (AtomicMoveNotSupportedException e) {
+                Files.move(path, target, StandardCopyOption.REPLACE_EXISTING);
+            }
+            path = target;
+        }
+        finally {
+            moveLock.unlock();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        for (Segment segment : segments) {
+            if (segment.channel != null) segment.channel.close();
+        }
+    }
+}
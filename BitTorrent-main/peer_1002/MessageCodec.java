@@ -0,0 +1,233 @@
+import java.nio.*;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * @description Encode and decode all the protocol messages directly into and out of reusable byte buffers.
+ * Encoders append one frame at the buffer position, decoders read from the buffer position, so callers can keep
+ * one buffer per thread or connection and never allocate per message.
+ */
+public class MessageCodec {
+    public static final char CHOKE = '0';
+    public static final char UNCHOKE = '1';
+    public static final char INTERESTED = '2';
+    public static final char NOT_INTERESTED = '3';
+    public static final char HAVE = '4';
+    public static final char BITFIELD = '5';
+    public static final char REQUEST = '6';
+    public static final char PIECE = '7';
+
+    // Extended messages, only sent to neighbors that announce the matching extension
+    public static final char REQUEST_BLOCK = '8';
+    public static final char BLOCK = '9';
+    public static final char HAVE_BATCH = 'A';
+    public static final String HANDSHAKE_HEADER = "P2PFILESHARINGPROJ";
+    public static final String ZERO_BITS = "0000000000";
+
+    // Field lengths in byte
+    public static final int HANDSHAKE_LEN = 32;
+    public static final int LENGTH_FIELD_LEN = 4;
+    public static final int HEADER_LEN = 5;
+    public static final int INDEX_LEN = 4;
+    public static final int OFFSET_LEN = 4;
+    public static final int BLOCK_LEN_LEN = 4;
+    public static final int RANGE_LEN = 8;
+    public static final int PEER_ID_OFFSET = 28;
+
+    // Extensions announced in the zero bits of the handshake, one byte per extension counted backwards from the
+    // peer Id field, '1' means supported. Original peers always send '0' there
+    public static final int EXT_RAW_FRAMING = 0;
+    public static final int EXT_BLOCK_REQUESTS = 1;
+    public static final int EXT_HAVE_BATCH = 2;
+
+    // Largest block a neighbor may ask for in one REQUEST_BLOCK message
+    public static final int MAX_BLOCK_LEN = 131072;
+
+    private static final byte[] HANDSHAKE_HEADER_BYTES = HANDSHAKE_HEADER.getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] ZERO_BITS_BYTES = ZERO_BITS.getBytes(StandardCharsets.US_ASCII);
+
+    /**
+     * Append the "length" and "type" fields of a message
+     * @param len Message length, not include length field itself
+     * @param type Message type
+     */
+    private static ByteBuffer putHeader(ByteBuffer dst, int len, char type) {
+        return dst.putInt(len).put((byte)type);
+    }
+
+    /**
+     * Append CHOKE message
+     */
+    public static ByteBuffer encodeChoke(ByteBuffer dst) {
+        return putHeader(dst, 1, CHOKE);
+    }
+
+    /**
+     * Append UNCHOKE message
+     */
+    public static ByteBuffer encodeUnchoke(ByteBuffer dst) {
+        return putHeader(dst, 1, UNCHOKE);
+    }
+
+    /**
+     * Append INTERESTED message
+     */
+    public static ByteBuffer encodeInterested(ByteBuffer dst) {
+        return putHeader(dst, 1, INTERESTED);
+    }
+
+    /**
+     * Append NOT_INTERESTED message
+     */
+    public static ByteBuffer encodeNotInterested(ByteBuffer dst) {
+        return putHeader(dst, 1, NOT_INTERESTED);
+    }
+
+    /**
+     * Append HAVE message
+     */
+    public static ByteBuffer encodeHave(ByteBuffer dst, int pieceIndex) {
+        return putHeader(dst, 1 + INDEX_LEN, HAVE).putInt(pieceIndex);
+    }
+
+    /**
+     * Append BITFIELD message, the highest bit of the first byte stands for piece 0
+     */
+    public static ByteBuffer encodeBitfield(ByteBuffer dst, Bitfield bitfield) {
+        putHeader(dst, bitfieldPayloadLen(bitfield.length()) + 1, BITFIELD);
+        return bitfield.writeTo(dst);
+    }
+
+    /**
+     * Append HAVE_BATCH message, announcing runs of consecutive pieces as {first index, count} pairs
+     * @param ranges Array of pairs, "rangeNum" of them are taken starting at pair "from"
+     */
+    public static ByteBuffer encodeHaveBatch(ByteBuffer dst, int[] ranges, int from, int rangeNum) {
+        putHeader(dst, 1 + rangeNum * RANGE_LEN, HAVE_BATCH);
+        for (int i = from * 2; i < (from + rangeNum) * 2; i++) dst.putInt(ranges[i]);
+        return dst;
+    }
+
+    /**
+     * Append REQUEST message
+     */
+    public static ByteBuffer encodeRequest(ByteBuffer dst, int pieceIndex) {
+        return putHeader(dst, 1 + INDEX_LEN, REQUEST).putInt(pieceIndex);
+    }
+
+    /**
+     * Append REQUEST_BLOCK message, asking for "len" bytes of a piece starting at "offset"
+     */
+    public static ByteBuffer encodeRequestBlock(ByteBuffer dst, int pieceIndex, int offset, int len) {
+        return putHeader(dst, 1 + INDEX_LEN + OFFSET_LEN + BLOCK_LEN_LEN, REQUEST_BLOCK).putInt(pieceIndex).putInt(offset).putInt(len);
+    }
+
+    /**
+     * Append only the header, index and offset fields of a BLOCK message, the content is written right after it
+     * @param contentLen Length of the block content that will follow
+     */
+    public static ByteBuffer encodeBlockHeader(ByteBuffer dst, int pieceIndex, int offset, int contentLen) {
+        return putHeader(dst, 1 + INDEX_LEN + OFFSET_LEN + contentLen, BLOCK).putInt(pieceIndex).putInt(offset);
+    }
+
+    /**
+     * Append only the header and index fields of a PIECE message, so the content can be written right after it
+     * from wherever it is stored without being copied
+     * @param contentLen Length of the piece content that will follow
+     */
+    public static ByteBuffer encodePieceHeader(ByteBuffer dst, int pieceIndex, int contentLen) {
+        return putHeader(dst, 1 + INDEX_LEN + contentLen, PIECE).putInt(pieceIndex);
+    }
+
+    /**
+     * Append a complete PIECE message
+     */
+    public static ByteBuffer encodePiece(ByteBuffer dst, int pieceIndex, byte[] content) {
+        return encodePieceHeader(dst, pieceIndex, content.length).put(content);
+    }
+
+    /**
+     * Append handshake message
+     * @param peerId peer Id field in the message
+     */
+    public static ByteBuffer encodeHandshake(ByteBuffer dst, int peerId) {
+        return encodeHandshake(dst, peerId, 0);
+    }
+
+    /**
+     * Append handshake message announcing some extensions
+     * @param peerId peer Id field in the message
+     * @param extensions Bit set of supported extensions, bit i stands for extension i
+     */
+    public static ByteBuffer encodeHandshake(ByteBuffer dst, int peerId, int extensions) {
+        dst.put(HANDSHAKE_HEADER_BYTES).put(ZERO_BITS_BYTES);
+        for (int ext = 0; ext < ZERO_BITS_BYTES.length; ext++) {
+            if ((extensions & (1 << ext)) != 0) dst.put(dst.position() - 1 - ext, (byte)'1');
+        }
+        return dst.putInt(peerId);
+    }
+
+    /**
+     * Get the extensions announced in a handshake message without moving the buffer position, so it must be called
+     * before decodeHandshakePeerId
+     * @return Bit set of extensions, bit i stands for extension i
+     */
+    public static int decodeHandshakeExtensions(ByteBuffer src) {
+        int extensions = 0;
+        for (int ext = 0; ext < ZERO_BITS_BYTES.length; ext++) {
+            if (src.get(src.position() + PEER_ID_OFFSET - 1 - ext) == '1') extensions |= 1 << ext;
+        }
+        return extensions;
+    }
+
+    /**
+     * Get peer Id field from handshake message, the buffer position is moved to the end of the message
+     */
+    public static int decodeHandshakePeerId(ByteBuffer src) {
+        int peerId = src.getInt(src.position() + PEER_ID_OFFSET);
+        src.position(src.position() + HANDSHAKE_LEN);
+        return peerId;
+    }
+
+    /**
+     * Get piece index field from HAVE, REQUEST or PIECE payload
+     */
+    public static int decodeIndex(ByteBuffer src) {
+        return src.getInt();
+    }
+
+    /**
+     * Get block offset field from REQUEST_BLOCK or BLOCK payload, right after the piece index
+     */
+    public static int decodeOffset(ByteBuffer src) {
+        return src.getInt();
+    }
+
+    /**
+     * Get block length field from REQUEST_BLOCK payload, right after the block offset
+     */
+    public static int decodeBlockLen(ByteBuffer src) {
+        return src.getInt();
+    }
+
+    /**
+     * Get the piece count of a HAVE_BATCH range, right after its first index
+     */
+    public static int decodeRangeCount(ByteBuffer src) {
+        return src.getInt();
+    }
+
+    /**
+     * Decode a "pure" bitfield payload without "length" and "type" field into an existing bitfield
+     * @param dst Destination bitfield, its length is the actual number of pieces
+     */
+    public static Bitfield decodeBitfield(ByteBuffer src, Bitfield dst) {
+        return dst.readFrom(src);
+    }
+
+    /**
+     * Number of bytes needed to carry a bitfield of the given number of pieces
+     */
+    public static int bitfieldPayloadLen(int pieceNum) {
+        return pieceNum % 8 == 0 ? pieceNum / 8 : pieceNum / 8 + 1;
+    }
+}
@@ -0,0 +1,61 @@
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.function.*;
+
+/**
+ * @description Named counters and gauges shared by the whole peer process, written into the log when the peer
+ * finishes
+ */
+public class Metrics {
+    private static final ConcurrentHashMap<String, LongAdder> counters = new ConcurrentHashMap<>();
+    private static final ConcurrentHashMap<String, String[]> ratios = new ConcurrentHashMap<>();
+    private static final ConcurrentHashMap<String, LongSupplier> gauges = new ConcurrentHashMap<>();
+
+    /**
+     * Get a counter, creating it on first use. Callers on hot paths should keep the returned counter in a field
+     */
+    public static LongAdder counter(String name) {
+        return counters.computeIfAbsent(name, k -> new LongAdder());
+    }
+
+    /**
+     * Report the ratio of two counters under its own name
+     */
+    public static void ratio(String name, String numerator, String denominator) {
+        ratios.put(name, new String[]{numerator, denominator});
+    }
+
+    /**
+     * Report a value read when the report is made, such as the size of a pool
+     */
+    public static void gauge(String name, LongSupplier value) {
+        gauges.put(name, value);
+    }
+
+    /**
+     * Format all the counters, ratios and gauges sorted by name
+     */
+    public static String report() {
+        TreeMap<String, String> values = new TreeMap<>();
+        for (Map.Entry<String, LongAdder> entry : counters.entrySet()) {
+            values.put(entry.getKey(), String.valueOf(entry.getValue().sum()));
+        }
+        for (Map.Entry<String, LongSupplier> entry : gauges.entrySet()) {
+            values.put(entry.getKey(), String.valueOf(entry.getValue().getAsLong()));
+        }
+        for (Map.Entry<String, String[]> entry : ratios.entrySet()) {
+            long denominator = counter(entry.getValue()[1]).sum();
+            if (denominator != 0) {
+                values.put(entry.getKey(), String.format("%.2f", counter(entry.getValue()[0]).sum() * 1.0 / denominator));
+            }
+        }
+
+        StringBuilder content = new StringBuilder();
+        for (Map.Entry<String, String> entry : values.entrySet()) {
+            if (content.length() > 0) content.append(", ");
+            content.append(entry.getKey()).append(": ").append(entry.getValue());
+        }
+        return content.toString();
+    }
+}
@@ -0,0 +1,47 @@
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+
+/**
+ * @description Sending side of a connection with a neighbor, shared by the blocking threads and the reactor engine.
+ * Messages are queued and written by the connection's own writer, so sending never waits for the socket
+ */
+public interface PeerConnection {
+    /**
+     * Send one message
+     * @param frame Buffer holding the encoded message from index 0 up to its position, the caller may reuse it as
+     *              soon as this method returns
+     * @param content Piece content sent right after the frame, null if there is none
+     */
+    default void send(ByteBuffer frame, byte[] content) throws IOException {
+        send(frame, content == null ? null : ByteBuffer.wrap(content));
+    }
+
+    /**
+     * Send one message whose content is in a heap or direct buffer
+     * @param frame Buffer holding the encoded message from index 0 up to its position, the caller may reuse it as
+     *              soon as this method returns
+     * @param content Buffer holding the content from its position to its limit, null if there is none. The buffer
+     *                is kept by the connection, so the caller passes a view of its own, and the bytes must not
+     *                change until the message is written
+     */
+    void send(ByteBuffer frame, ByteBuffer content) throws IOException;
+
+    /**
+     * Send one message whose content is a region of a file, moving the content from the file to the socket without
+     * passing through the heap. The file must stay open until the message is written
+     * @param frame Buffer holding the encoded message header from index 0 up to its position
+     * @return "false" if the connection can't send file regions, nothing is sent in that case
+     */
+    boolean sendFileRegion(ByteBuffer frame, FileChannel file, long position, int count) throws IOException;
+
+    /**
+     * Check if the neighbor is falling behind, more bytes are queued for it than the outbound queue capacity
+     */
+    boolean isCongested();
+
+    /**
+     * Set the callback run every time everything queued for the neighbor has been written
+     */
+    void setDrainListener(Runnable listener);
+}
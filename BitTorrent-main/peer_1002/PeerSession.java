@@ -0,0 +1,63 @@
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * @description Protocol state of the connection with one neighbor, independent of how the bytes are moved
+ */
+public class PeerSession {
+    final PeerConnection connection;
+    final int destPeerId;
+    final int extensions;
+
+    // Whether the neighbor has unchoked us, and the pieces or blocks asked from it but not received yet
+    boolean request = true;
+    final Set<Integer> requestedIndexSet = new HashSet<>();
+    final Set<Long> requestedBlockSet = new HashSet<>();
+
+    // Most requests kept outstanding, counted in blocks if the neighbor takes block requests, and for automatic sizing, the start of the current interval with requests
+    // outstanding and the rate pieces arrive at in byte per nanosecond
+    int window;
+    long busySince = 0;
+    double arrivalRate = 0;
+
+    // Requests from the neighbor put off while the outbound queue to it is congested, as {index, offset, length}
+    final Queue<int[]> deferredRequests = new ConcurrentLinkedQueue<>();
+
+    // Pieces whose HAVE waits to go out in the next HAVE_BATCH message
+    final Queue<Integer> pendingHaves = new ConcurrentLinkedQueue<>();
+
+    // Assembly the content of the PIECE or BLOCK message being read goes into, null if the content is dropped
+    PieceAssembly receiving;
+
+    // Number of pieces taken into account for the average download rate
+    int pieceNum = 0;
+
+    public PeerSession(PeerConnection connection, int destPeerId, int extensions, int window) {
+        this.connection = connection;
+        this.destPeerId = destPeerId;
+        this.extensions = extensions;
+        this.window = window;
+    }
+
+    /**
+     * Check if pieces are asked from the neighbor block by block
+     */
+    boolean usesBlocks() {
+        return (extensions & (1 << MessageCodec.EXT_BLOCK_REQUESTS)) != 0;
+    }
+
+    /**
+     * Check if the neighbor takes HAVE_BATCH and BITFIELD messages at any time, so that HAVE messages for pieces it
+     * already has can be left out
+     */
+    boolean takesHaveBatch() {
+        return (extensions & (1 << MessageCodec.EXT_HAVE_BATCH)) != 0;
+    }
+
+    /**
+     * Number of requests not answered yet
+     */
+    int outstanding() {
+        return requestedIndexSet.size() + requestedBlockSet.size();
+    }
+}
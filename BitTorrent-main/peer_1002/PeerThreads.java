@@ -0,0 +1,70 @@
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+/**
+ * @description Where the threads of a peer come from: the connection handlers and their writers, the timer
+ * callbacks and the storage and verifier workers. By default they are platform threads. In virtual thread mode they
+ * are virtual threads, which cost a small heap object instead of a native stack each, so a peer can hold many more
+ * neighbors with one blocking thread per connection. Virtual threads are looked up by reflection, so the peer still
+ * builds and runs on runtimes without them, falling back to platform threads. Code running on these threads must
+ * not block on I/O while holding a monitor, which would pin a virtual thread to its carrier, locks are used instead.
+ */
+public class PeerThreads {
+    private static ThreadFactory factory = Thread::new;
+    private static boolean virtual = false;
+
+    /**
+     * Switch to virtual threads if the runtime has them
+     * @return "true" if threads are virtual from now on, "false" if they stay platform threads
+     */
+    public static boolean useVirtual() {
+        try {
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            factory = (ThreadFactory)Class.forName("java.lang.Thread$Builder").getMethod("factory").invoke(builder);
+            virtual = true;
+        }
+        catch (ReflectiveOperationException | UnsupportedOperationException e) {
+            virtual = false;
+        }
+        return virtual;
+    }
+
+    public static boolean isVirtual() {
+        return virtual;
+    }
+
+    /**
+     * Kind of the threads made from now on, "virtual" or "platform"
+     */
+    public static String kind() {
+        return virtual ? "virtual" : "platform";
+    }
+
+    /**
+     * Create a thread which isn't started yet. Virtual threads are always daemon threads
+     * @param daemon "true" if a platform thread doesn't keep the process alive
+     */
+    public static Thread newThread(Runnable task, String name, boolean daemon) {
+        Thread thread = factory.newThread(task);
+        thread.setName(name);
+        if (!virtual) thread.setDaemon(daemon);
+        return thread;
+    }
+
+    /**
+     * Create a thread like newThread() and start it
+     */
+    public static Thread start(Runnable task, String name, boolean daemon) {
+        Thread thread = newThread(task, name, daemon);
+        thread.start();
+        return thread;
+    }
+
+    /**
+     * Factory for the threads of a pool, named with a prefix and a count
+     */
+    public static ThreadFactory factory(String prefix, boolean daemon) {
+        AtomicInteger threadCount = new AtomicInteger();
+        return task -> newThread(task, prefix + "-" + threadCount.incrementAndGet(), daemon);
+    }
+}
@@ -0,0 +1,146 @@
+import java.nio.*;
+import java.util.*;
+
+/**
+ * @description Content of one piece being downloaded in blocks, possibly from several neighbors at the same time,
+ * or as a whole from a neighbor which only sends whole pieces. Blocks are numbered from the start of the piece,
+ * every block has the same size except the last one. Received content is read straight into the piece buffer,
+ * borrowed from an arena, and the same block read from two neighbors at once is written twice with the same
+ * bytes. All the methods can be called from any connection thread
+ */
+public class PieceAssembly {
+    final int pieceIndex;
+    final ByteBuffer content;
+    private final int blockSize, blockNum;
+    private final BitSet requested, received;
+    private boolean complete = false;
+
+    // Targets handed out whose content isn't recorded yet, the buffer goes back to the arena only once none is left
+    private final BufferArena arena;
+    private int writers = 0;
+    private boolean discarded = false;
+
+    /**
+     * @param pieceLen Actual length of the piece, the last piece may be shorter than the others
+     * @param arena Arena the piece buffer is borrowed from, whoever ends up with the content gives it back
+     */
+    public PieceAssembly(int pieceIndex, int pieceLen, int blockSize, BufferArena arena) {
+        this.pieceIndex = pieceIndex;
+        this.arena = arena;
+        this.content = arena.acquire().limit(pieceLen);
+        this.blockSize = blockSize;
+        this.blockNum = pieceLen % blockSize == 0 ? pieceLen / blockSize : pieceLen / blockSize + 1;
+        this.requested = new BitSet(blockNum);
+        this.received = new BitSet(blockNum);
+    }
+
+    /**
+     * Key of a block in the sets of outstanding requests
+     */
+    public static long blockKey(int pieceIndex, int block) {
+        return (long)pieceIndex << 32 | block;
+    }
+
+    public static int keyPieceIndex(long key) {
+        return (int)(key >>> 32);
+    }
+
+    public static int keyBlock(long key) {
+        return (int)key;
+    }
+
+    public int blockOffset(int block) {
+        return block * blockSize;
+    }
+
+    public int blockLen(int block) {
+        return Math.min(blockSize, content.limit() - block * blockSize);
+    }
+
+    /**
+     * Take the first block nobody has asked for yet
+     * @return The block, or -1 if every block is requested or received
+     */
+    public synchronized int claimBlock() {
+        int block = requested.nextClearBit(0);
+        if (block >= blockNum) return -1;
+        requested.set(block);
+        return block;
+    }
+
+    /**
+     * Take a block which is requested from some neighbor but not received yet, for asking another neighbor as well
+     * @param outstanding Blocks already requested from that neighbor, they are skipped
+     * @return The block, or -1 if there is none
+     */
+    public synchronized int claimRequestedBlock(Set<Long> outstanding) {
+        for (int block = received.nextClearBit(0); block < blockNum; block = received.nextClearBit(block + 1)) {
+            if (!outstanding.contains(blockKey(pieceIndex, block))) {
+                requested.set(block);
+                return block;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Give back a block whose request won't be answered, so that it can be claimed again
+     */
+    public synchronized void release(int block) {
+        if (!received.get(block)) requested.clear(block);
+    }
+
+    /**
+     * Find where the content of a received block or of the whole piece goes. Every target handed out must be
+     * followed by one call to receive(), even if reading the content fails
+     * @param offset Offset of the content in the piece, the start of a block, or 0 for the whole piece
+     * @param len Length of the content, as long as the block or the whole piece
+     * @return Buffer over that part of the piece, or null if the content isn't needed
+     */
+    public synchronized ByteBuffer target(int offset, int len) {
+        if (complete || offset < 0 || offset >= content.limit()) return null;
+        if (offset == 0 && len == content.limit()) {
+            // Nobody else needs to be asked for the blocks of a piece coming whole
+            requested.set(0, blockNum);
+            writers++;
+            return content.duplicate();
+        }
+        int block = offset / blockSize;
+        if (offset % blockSize != 0 || received.get(block) || len != blockLen(block)) return null;
+        writers++;
+        return content.duplicate().position(offset).limit(offset + len);
+    }
+
+    /**
+     * Record that content has been read into the buffer got from target()
+     * @return "true" only for the content that completes the piece
+     */
+    public synchronized boolean receive(int offset, int len) {
+        writers--;
+        if (discarded) {
+            if (writers == 0) arena.release(content);
+            return false;
+        }
+        if (complete || offset < 0 || offset >= content.limit()) return false;
+        if (offset == 0 && len == content.limit()) {
+            received.set(0, blockNum);
+        }
+        else {
+            int block = offset / blockSize;
+            if (offset % blockSize != 0 || received.get(block) || len != blockLen(block)) return false;
+            received.set(block);
+            requested.set(block);
+        }
+        complete = received.cardinality() == blockNum;
+        return complete;
+    }
+
+    /**
+     * Give the piece buffer back to the arena once nobody reads into it anymore, for a piece which isn't kept
+     */
+    public synchronized void discard() {
+        if (discarded) return;
+        discarded = true;
+        if (writers == 0) arena.release(content);
+    }
+}
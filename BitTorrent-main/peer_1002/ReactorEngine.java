@@ -0,0 +1,620 @@
+import java.io.*;
+import java.net.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+/**
+ * @description Non-blocking networking engine which multiplexes all the connections of a peer on a fixed group of
+ * reactor threads, each one running its own selector. Accepting, connecting, frame decoding, message dispatch and
+ * writes all happen on the reactor threads.
+ * Connections open with the same bytes FrameTransport sends through object streams, so that blocking peers can
+ * talk to this engine, but only raw framing is spoken afterwards. Neighbors which don't announce raw framing in the
+ * handshake are disconnected.
+ */
+public class ReactorEngine {
+    private static final long CONNECT_RETRY_MILLIS = 100;
+    private static final long SHUTDOWN_FLUSH_MILLIS = 1000;
+
+    // The object stream header and the block-data header in front of the handshake message
+    private static final int OPENING_LEN = 6 + MessageCodec.HANDSHAKE_LEN;
+
+    /**
+     * @description Callbacks into the message handling, always called on a reactor thread
+     */
+    public interface Handler {
+        /**
+         * The handshake is done
+         * @param remoteExtensions Extensions announced by the neighbor
+         * @param initiator "true" if this peer made the connection
+         * @return Protocol state for the connection
+         */
+        PeerSession onConnected(PeerConnection connection, int destPeerId, int remoteExtensions, boolean initiator);
+
+        /**
+         * A message other than PIECE or BLOCK arrives
+         * @param payload Buffer holding the payload from its position to its limit, only valid during the call
+         */
+        void onMessage(PeerSession session, char msgType, ByteBuffer payload);
+
+        /**
+         * The fields of a PIECE or BLOCK message arrive, find where its content is read to
+         * @param offset Offset of the content in the piece, 0 for a PIECE message
+         * @return Buffer with exactly "len" bytes remaining, or null to drop the content
+         */
+        ByteBuffer receiveTarget(PeerSession session, int pieceIndex, int offset, int len);
+
+        /**
+         * A PIECE message arrives completely
+         * @param kept "true" if the content was read into the buffer from receiveTarget, "false" if it was dropped
+         * @param elapsedNanos Time between the piece header and the last byte of the content
+         */
+        void onPiece(PeerSession session, int pieceIndex, int len, boolean kept, long elapsedNanos);
+
+        /**
+         * A BLOCK message arrives completely
+         * @param offset Offset of the block in the piece
+         * @param kept "true" if the content was read into the buffer from receiveTarget, "false" if it was dropped
+         * @param elapsedNanos Time between the block header and the last byte of the content
+         */
+        void onBlock(PeerSession session, int pieceIndex, int offset, int len, boolean kept, long elapsedNanos);
+    }
+
+    private final Handler handler;
+    private final Reactor[] reactors;
+    private final ByteBuffer opening;
+    private final BufferArena readArena;
+    private final long queueCapacity;
+    private final long coalesceNanos;
+    private final AtomicInteger nextReactor = new AtomicInteger();
+
+    /**
+     * @param threadNum Number of reactor threads
+     * @param selfPeerId Peer Id sent in the handshake message
+     * @param extensions Extensions announced in the handshake message
+     * @param maxFrameLen Largest message other than PIECE or BLOCK, including its length field
+     * @param queueCapacity Queued bytes above which a connection is congested
+     * @param coalesceNanos Longest time control messages wait for more messages to be written with them
+     */
+    public ReactorEngine(int threadNum, Handler handler, int selfPeerId, int extensions, int maxFrameLen, long queueCapacity, long coalesceNanos) throws IOException {
+        this.handler = handler;
+        this.readArena = new BufferArena("readBuffers", Math.max(maxFrameLen, 65536));
+        this.queueCapacity = queueCapacity;
+        this.coalesceNanos = coalesceNanos;
+
+        opening = ByteBuffer.allocate(OPENING_LEN);
+        opening.putShort(ObjectStreamConstants.STREAM_MAGIC).putShort(ObjectStreamConstants.STREAM_VERSION);
+        opening.put(ObjectStreamConstants.TC_BLOCKDATA).put((byte)MessageCodec.HANDSHAKE_LEN);
+        MessageCodec.encodeHandshake(opening, selfPeerId, extensions);
+
+        reactors = new Reactor[threadNum];
+        for (int i = 0; i < threadNum; i++) {
+            reactors[i] = new Reactor(i);
+            reactors[i].start();
+        }
+    }
+
+    /**
+     * Accept a limited number of connections on a port
+     */
+    public void listen(int port, int connectionNum) throws IOException {
+        if (connectionNum <= 0) return;
+        ServerSocketChannel serverChannel = ServerSocketChannel.open();
+        serverChannel.bind(new InetSocketAddress(port));
+        serverChannel.configureBlocking(false);
+        reactors[0].execute(() -> reactors[0].registerServer(serverChannel, connectionNum));
+    }
+
+    /**
+     * Connect to a neighbor, retrying until it accepts
+     */
+    public void connect(String address, int port) {
+        Reactor reactor = nextReactor();
+        reactor.execute(() -> reactor.connect(new InetSocketAddress(address, port)));
+    }
+
+    /**
+     * Stop all the reactor threads and close every connection, after writing what is still queued for a while
+     */
+    public void shutdown() {
+        for (Reactor reactor : reactors) reactor.shutdown();
+    }
+
+    private Reactor nextReactor() {
+        return reactors[Math.floorMod(nextReactor.getAndIncrement(), reactors.length)];
+    }
+
+    /**
+     * @description One selector and the thread running it
+     */
+    private class Reactor extends Thread {
+        private final Selector selector;
+        private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+        private final Queue<Connection> pendingWrites = new ConcurrentLinkedQueue<>();
+        private final DelayQueue<DelayedConnect> pendingConnects = new DelayQueue<>();
+        private volatile boolean running = true;
+
+        // Connections holding only control messages, written together once the oldest one has waited long enough
+        private final List<Connection> coalescing = new ArrayList<>();
+        private final ByteBuffer[] gathered = new ByteBuffer[OutboundQueue.GATHER_MAX];
+
+        // Scratch buffer for input which is read only to be dropped
+        private final ByteBuffer discarded = ByteBuffer.allocate(65536);
+
+        Reactor(int index) throws IOException {
+            super("reactor-" + index);
+            selector = Selector.open();
+        }
+
+        /**
+         * Run a task on this reactor thread
+         */
+        void execute(Runnable task) {
+            tasks.add(task);
+            selector.wakeup();
+        }
+
+        void requestWrite(Connection connection) {
+            pendingWrites.add(connection);
+            if (Thread.currentThread() != this) selector.wakeup();
+        }
+
+        void shutdown() {
+            running = false;
+            selector.wakeup();
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (running) {
+                    selector.select(selectTimeout());
+
+                    Runnable task;
+                    DelayedConnect retry;
+                    while ((task = tasks.poll()) != null) task.run();
+                    while ((retry = pendingConnects.poll()) != null) connect(retry.address);
+
+                    Iterator<SelectionKey> iterator = selector.selectedKeys().iterator();
+                    while (iterator.hasNext()) {
+                        SelectionKey key = iterator.next();
+                        iterator.remove();
+                        if (!key.isValid()) continue;
+                        if (key.isAcceptable()) accept(key);
+                        else if (key.isConnectable()) finishConnect(key);
+                        else {
+                            Connection connection = (Connection)key.attachment();
+                            try {
+                                if (key.isReadable()) connection.onReadable();
+                                if (key.isValid() && key.isWritable()) connection.flush();
+                            }
+                            catch (RuntimeException e) {
+                                e.printStackTrace();
+                                connection.close();
+                            }
+                        }
+                    }
+
+                    // Flush what the message handling and other threads have queued, a queue of control messages can
+                    // wait a little for more of them
+                    Connection connection;
+                    while ((connection = pendingWrites.poll()) != null) {
+                        if (connection.flushDelay() > 0) coalescing.add(connection);
+                        else connection.flush();
+                    }
+                    for (Iterator<Connection> waiting = coalescing.iterator(); waiting.hasNext(); ) {
+                        connection = waiting.next();
+                        if (connection.flushDelay() <= 0) {
+                            waiting.remove();
+                            connection.flush();
+                        }
+                    }
+                }
+                flushBeforeClose();
+            }
+            catch (IOException e) {
+                e.printStackTrace();
+            }
+            finally {
+                for (SelectionKey key : selector.keys()) {
+                    if (key.attachment() instanceof Connection) ((Connection)key.attachment()).close();
+                    else closeQuietly(key.channel());
+                }
+                closeQuietly(selector);
+            }
+        }
+
+        /**
+         * Give the connections some time to write their queued messages, such as the last 'have' messages, so that
+         * the neighbors learn everything this peer knows before the connections are closed. Then only the output is
+         * closed and the input is discarded until the neighbors close too: closing with unread input resets the
+         * connection, and the neighbor may lose the messages just written before reading them
+         */
+        private void flushBeforeClose() throws IOException {
+            long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(SHUTDOWN_FLUSH_MILLIS);
+            while (true) {
+                boolean pending = false;
+                for (Connection connection : connections()) {
+                    connection.flush();
+                    pending |= connection.hasPendingWrites();
+                }
+                if (!pending) break;
+                if (System.nanoTime() >= deadline) return;
+                selector.select(10);
+                selector.selectedKeys().clear();
+            }
+
+            for (Connection connection : connections()) connection.shutdownOutput();
+            while (System.nanoTime() < deadline && connections().size() != 0) {
+                selector.select(10);
+                for (SelectionKey key : selector.selectedKeys()) {
+                    if (key.isValid() && key.isReadable() && key.attachment() instanceof Connection) {
+                        ((Connection)key.attachment()).discardInput(discarded);
+                    }
+                }
+                selector.selectedKeys().clear();
+            }
+        }
+
+        /**
+         * Connections still open on this reactor
+         */
+        private List<Connection> connections() {
+            List<Connection> connections = new ArrayList<>();
+            for (SelectionKey key : selector.keys()) {
+                if (key.isValid() && key.attachment() instanceof Connection) connections.add((Connection)key.attachment());
+            }
+            return connections;
+        }
+
+        /**
+         * Milliseconds to wait for events until the next connect retry or coalesced write is due, 0 for no limit
+         */
+        private long selectTimeout() {
+            long timeout = 0;
+            DelayedConnect retry = pendingConnects.peek();
+            if (retry != null) timeout = Math.max(1, retry.getDelay(TimeUnit.MILLISECONDS));
+            for (Connection connection : coalescing) {
+                long wait = Math.max(1, TimeUnit.NANOSECONDS.toMillis(connection.flushDelay() + 999_999));
+                timeout = timeout == 0 ? wait : Math.min(timeout, wait);
+            }
+            return timeout;
+        }
+
+        void registerServer(ServerSocketChannel serverChannel, int connectionNum) {
+            try {
+                serverChannel.register(selector, SelectionKey.OP_ACCEPT, new int[]{connectionNum});
+            }
+            catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+
+        private void accept(SelectionKey key) throws IOException {
+            ServerSocketChannel serverChannel = (ServerSocketChannel)key.channel();
+            int[] remaining = (int[])key.attachment();
+            SocketChannel channel;
+            while (remaining[0] > 0 && (channel = serverChannel.accept()) != null) {
+                remaining[0]--;
+                SocketChannel accepted = channel;
+                Reactor reactor = nextReactor();
+                reactor.execute(() -> reactor.register(accepted, false));
+            }
+            // Stop listening once all the later peers have connected
+            if (remaining[0] == 0) closeQuietly(serverChannel);
+        }
+
+        void connect(InetSocketAddress address) {
+            SocketChannel channel = null;
+            try {
+                channel = SocketChannel.open();
+                channel.configureBlocking(false);
+                if (channel.connect(address)) register(channel, true);
+                else channel.register(selector, SelectionKey.OP_CONNECT, address);
+            }
+            catch (IOException e) {
+                closeQuietly(channel);
+                pendingConnects.add(new DelayedConnect(address));
+            }
+        }
+
+        private void finishConnect(SelectionKey key) {
+            SocketChannel channel = (SocketChannel)key.channel();
+            try {
+                channel.finishConnect();
+                attach(key, channel, true);
+            }
+            catch (IOException e) {
+                System.err.println("Connection to " + key.attachment() + " refused.");
+                closeQuietly(channel);
+                pendingConnects.add(new DelayedConnect((InetSocketAddress)key.attachment()));
+            }
+        }
+
+        void register(SocketChannel channel, boolean initiator) {
+            try {
+                channel.configureBlocking(false);
+                attach(channel.register(selector, SelectionKey.OP_READ), channel, initiator);
+            }
+            catch (IOException e) {
+                closeQuietly(channel);
+            }
+        }
+
+        /**
+         * Start a connection on a registered channel by sending the opening bytes
+         */
+        private void attach(SelectionKey key, SocketChannel channel, boolean initiator) throws IOException {
+            channel.socket().setTcpNoDelay(true);
+            Connection connection = new Connection(this, channel, initiator);
+            connection.key = key;
+            key.attach(connection);
+            key.interestOps(SelectionKey.OP_READ);
+            connection.send(opening, (ByteBuffer)null);
+        }
+    }
+
+    /**
+     * @description Connect attempt waiting to be retried
+     */
+    private static class DelayedConnect implements Delayed {
+        final InetSocketAddress address;
+        final long dueTime = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(CONNECT_RETRY_MILLIS);
+
+        DelayedConnect(InetSocketAddress address) {
+            this.address = address;
+        }
+
+        @Override
+        public long getDelay(TimeUnit unit) {
+            return unit.convert(dueTime - System.nanoTime(), TimeUnit.NANOSECONDS);
+        }
+
+        @Override
+        public int compareTo(Delayed other) {
+            return Long.compare(dueTime, ((DelayedConnect)other).dueTime);
+        }
+    }
+
+    /**
+     * @description One connection with a neighbor, its frame decoder and its outbound queue
+     */
+    private class Connection implements PeerConnection {
+        private final Reactor reactor;
+        private final SocketChannel channel;
+        private final boolean initiator;
+        private SelectionKey key;
+        private volatile boolean closed = false;
+
+        // Inbound state
+        private final ByteBuffer readBuffer = readArena.acquire();
+        private PeerSession session;
+        private boolean readingContent;
+        private ByteBuffer pieceTarget;
+        private int pieceIndex, blockOffset, contentLen, skipRemaining;
+        private boolean block;
+        private long pieceStartTime;
+
+        // Outbound messages are queued by any thread and written by the reactor thread
+        private final OutboundQueue outbound = new OutboundQueue(queueCapacity);
+        private final AtomicBoolean writeRequested = new AtomicBoolean();
+
+        Connection(Reactor reactor, SocketChannel channel, boolean initiator) {
+            this.reactor = reactor;
+            this.channel = channel;
+            this.initiator = initiator;
+        }
+
+        @Override
+        public void send(ByteBuffer frame, ByteBuffer content) {
+            if (closed) return;
+            outbound.add(frame, content);
+            if (writeRequested.compareAndSet(false, true)) reactor.requestWrite(this);
+        }
+
+        @Override
+        public boolean sendFileRegion(ByteBuffer frame, FileChannel file, long position, int count) {
+            if (closed) return true;
+            outbound.addFileRegion(frame, file, position, count);
+            if (writeRequested.compareAndSet(false, true)) reactor.requestWrite(this);
+            return true;
+        }
+
+        @Override
+        public boolean isCongested() {
+            return outbound.isCongested();
+        }
+
+        @Override
+        public void setDrainListener(Runnable listener) {
+            outbound.setDrainListener(listener);
+        }
+
+        /**
+         * Write as much of the queued messages as the socket takes, gathering many messages into each write, and
+         * wait for OP_WRITE if some are left
+         */
+        void flush() {
+            writeRequested.set(false);
+            if (closed) return;
+            try {
+                boolean pending = outbound.writeTo(channel, reactor.gathered);
+                int ops = pending ? SelectionKey.OP_READ | SelectionKey.OP_WRITE : SelectionKey.OP_READ;
+                if (key.interestOps() != ops) key.interestOps(ops);
+                if (!pending) outbound.drained();
+            }
+            catch (IOException e) {
+                close();
+            }
+        }
+
+        /**
+         * Nanoseconds the queued messages can still wait before they are written
+         */
+        long flushDelay() {
+            return outbound.flushDelay(coalesceNanos);
+        }
+
+        boolean hasPendingWrites() {
+            return !closed && outbound.peek() != null;
+        }
+
+        void shutdownOutput() {
+            try {
+                channel.shutdownOutput();
+                key.interestOps(SelectionKey.OP_READ);
+            }
+            catch (IOException e) {
+                close();
+            }
+        }
+
+        /**
+         * Read and drop whatever the neighbor sends, close once it closes its side
+         */
+        void discardInput(ByteBuffer discarded) {
+            try {
+                discarded.clear();
+                if (channel.read(discarded) < 0) close();
+            }
+            catch (IOException e) {
+                close();
+            }
+        }
+
+        void onReadable() {
+            try {
+                // The content of a piece goes straight into its place in the piece
+                if (readingContent && !readContent()) return;
+
+                if (channel.read(readBuffer) < 0) {
+                    close();
+                    return;
+                }
+                readBuffer.flip();
+                try {
+                    decode();
+                }
+                finally {
+                    readBuffer.compact();
+                }
+            }
+            catch (IOException e) {
+                close();
+            }
+        }
+
+        /**
+         * Dispatch every complete message in the read buffer
+         */
+        private void decode() throws IOException {
+            if (session == null && !decodeOpening()) return;
+
+            while (!readingContent && readBuffer.remaining() >= MessageCodec.HEADER_LEN) {
+                int start = readBuffer.position();
+                int len = readBuffer.getInt(start);
+                char msgType = (char)readBuffer.get(start + MessageCodec.LENGTH_FIELD_LEN);
+
+                if (msgType == MessageCodec.PIECE || msgType == MessageCodec.BLOCK) {
+                    // The offset field only comes with a block
+                    block = msgType == MessageCodec.BLOCK;
+                    int fieldsLen = MessageCodec.INDEX_LEN + (block ? MessageCodec.OFFSET_LEN : 0);
+                    if (readBuffer.remaining() < MessageCodec.HEADER_LEN + fieldsLen) return;
+                    readBuffer.position(start + MessageCodec.HEADER_LEN);
+                    pieceIndex = MessageCodec.decodeIndex(readBuffer);
+                    if (block) blockOffset = MessageCodec.decodeOffset(readBuffer);
+                    pieceStartTime = System.nanoTime();
+                    contentLen = len - 1 - fieldsLen;
+                    if (contentLen < 0) throw new IOException("Message too short: " + len);
+                    pieceTarget = handler.receiveTarget(session, pieceIndex, block ? blockOffset : 0, contentLen);
+                    readingContent = true;
+
+                    // Take what is already buffered, the rest is read directly into the target or dropped
+                    int buffered = Math.min(readBuffer.remaining(), contentLen), limit = readBuffer.limit();
+                    readBuffer.limit(readBuffer.position() + buffered);
+                    if (pieceTarget != null) pieceTarget.put(readBuffer);
+                    else readBuffer.position(readBuffer.limit());
+                    readBuffer.limit(limit);
+                    skipRemaining = pieceTarget == null ? contentLen - buffered : 0;
+                    if (skipRemaining == 0 && (pieceTarget == null || !pieceTarget.hasRemaining())) finishPiece();
+                }
+                else {
+                    if (len + MessageCodec.LENGTH_FIELD_LEN > readBuffer.capacity()) throw new IOException("Message too long: " + len);
+                    if (readBuffer.remaining() < MessageCodec.LENGTH_FIELD_LEN + len) return;
+                    int end = start + MessageCodec.LENGTH_FIELD_LEN + len, limit = readBuffer.limit();
+                    readBuffer.position(start + MessageCodec.HEADER_LEN).limit(end);
+                    handler.onMessage(session, msgType, readBuffer);
+                    readBuffer.limit(limit).position(end);
+                }
+            }
+        }
+
+        /**
+         * Check the object stream header and the handshake message of the neighbor
+         * @return "true" once the handshake is done
+         */
+        private boolean decodeOpening() throws IOException {
+            if (readBuffer.remaining() < OPENING_LEN) return false;
+            if (readBuffer.getShort() != ObjectStreamConstants.STREAM_MAGIC
+                    || readBuffer.getShort() != ObjectStreamConstants.STREAM_VERSION
+                    || readBuffer.get() != ObjectStreamConstants.TC_BLOCKDATA
+                    || readBuffer.get() != MessageCodec.HANDSHAKE_LEN) {
+                throw new IOException("Unexpected connection opening");
+            }
+
+            int remoteExtensions = MessageCodec.decodeHandshakeExtensions(readBuffer);
+            int destPeerId = MessageCodec.decodeHandshakePeerId(readBuffer);
+            if ((remoteExtensions & (1 << MessageCodec.EXT_RAW_FRAMING)) == 0) {
+                throw new IOException("Peer " + destPeerId + " doesn't support raw framing");
+            }
+            session = handler.onConnected(this, destPeerId, remoteExtensions, initiator);
+            return true;
+        }
+
+        /**
+         * Read the rest of the content of a PIECE or BLOCK message, dropping it if it has no target
+         * @return "true" once the content is complete
+         */
+        private boolean readContent() throws IOException {
+            while (skipRemaining > 0) {
+                ByteBuffer discarded = reactor.discarded;
+                discarded.clear().limit(Math.min(discarded.capacity(), skipRemaining));
+                int len = channel.read(discarded);
+                if (len < 0) throw new EOFException();
+                if (len == 0) return false;
+                skipRemaining -= len;
+            }
+            if (pieceTarget != null) {
+                if (channel.read(pieceTarget) < 0) throw new EOFException();
+                if (pieceTarget.hasRemaining()) return false;
+            }
+            finishPiece();
+            return true;
+        }
+
+        private void finishPiece() {
+            boolean kept = pieceTarget != null;
+            readingContent = false;
+            pieceTarget = null;
+            if (block) handler.onBlock(session, pieceIndex, blockOffset, contentLen, kept, System.nanoTime() - pieceStartTime);
+            else handler.onPiece(session, pieceIndex, contentLen, kept, System.nanoTime() - pieceStartTime);
+        }
+
+        void close() {
+            if (!closed) readArena.release(readBuffer);
+            closed = true;
+            if (key != null) key.cancel();
+            closeQuietly(channel);
+        }
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+        try {
+            if (closeable != null) closeable.close();
+        }
+        catch (IOException ignored) {
+        }
+    }
+}
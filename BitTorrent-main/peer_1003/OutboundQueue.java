@@ -0,0 +1,252 @@
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+/**
+ * @description Outbound messages of one connection. Any thread adds messages without taking a lock, and a single
+ * consumer, the writer thread of the connection or its reactor, writes them out in order. Adding never waits for
+ * the socket: the capacity only marks the queue as congested, which tells the message handling to hold back bulk
+ * sends to that neighbor until the queue drains.
+ */
+public class OutboundQueue {
+    private static final LongAdder frames = Metrics.counter("outboundFrames");
+    private static final LongAdder writes = Metrics.counter("outboundWrites");
+    private static final LongAdder zeroCopyBytes = Metrics.counter("zeroCopyBytesSent");
+
+    // A write is one gathering write or flush, the transfer of a file region counts as part of the write carrying
+    // its header, so sending a piece straight from the file is one write like sending it from a buffer
+    static {
+        Metrics.ratio("framesPerWrite", "outboundFrames", "outboundWrites");
+    }
+
+    // Most buffers handed to one gathering write
+    public static final int GATHER_MAX = 64;
+
+    // Largest queue that still waits for more control messages before it is written
+    private static final int COALESCE_MAX_BYTES = 1024;
+
+    // Written entries kept for reuse, and the header room of a new entry, enough for every message but the larger
+    // bitfield and batched have messages
+    private static final int POOL_SIZE = GATHER_MAX, HEADER_ROOM = 64;
+
+    /**
+     * @description One queued message, a header optionally followed by content from a buffer or from a file.
+     * Only the consumer moves the buffer positions and the file region while writing it. Entries are reused once
+     * written, together with their header buffer
+     */
+    public static class Entry {
+        ByteBuffer header;
+        ByteBuffer content;
+        FileChannel file;
+        long position, remaining;
+        long size;
+        long queuedTime;
+        boolean writeCounted; // The file region belongs to a write counted already
+
+        /**
+         * Fill the entry with a message, the header is copied into the buffer of the entry, which grows if needed
+         * @param frame Buffer holding the encoded header from index 0 up to its position
+         */
+        Entry fill(ByteBuffer frame, ByteBuffer content, FileChannel file, long position, long count) {
+            if (header == null || header.capacity() < frame.position()) header = ByteBuffer.allocate(Math.max(frame.position(), HEADER_ROOM));
+            header.clear();
+            header.put(frame.array(), 0, frame.position()).flip();
+            this.content = content;
+            this.file = file;
+            this.position = position;
+            this.remaining = count;
+            this.size = header.remaining() + (content == null ? 0 : content.remaining()) + count;
+            this.queuedTime = System.nanoTime();
+            this.writeCounted = false;
+            return this;
+        }
+
+        /**
+         * Check if the header and the content from an array are written, only a file region may be left
+         */
+        boolean bytesWritten() {
+            return !header.hasRemaining() && (content == null || !content.hasRemaining());
+        }
+    }
+
+    private final Queue<Entry> entries = new ConcurrentLinkedQueue<>();
+    private final AtomicReferenceArray<Entry> pool = new AtomicReferenceArray<>(POOL_SIZE);
+    private final AtomicLong queuedBytes = new AtomicLong();
+    private final long capacity;
+    private volatile Runnable drainListener;
+
+    /**
+     * @param capacity Number of queued bytes above which the queue is congested
+     */
+    public OutboundQueue(long capacity) {
+        this.capacity = capacity;
+    }
+
+    /**
+     * Queue a message whose content is in a heap or direct buffer
+     * @param frame Buffer holding the encoded message from index 0 up to its position, it is copied
+     * @param content Buffer holding the content from its position to its limit, it is neither copied nor
+     *                duplicated, null if there is none
+     */
+    public void add(ByteBuffer frame, ByteBuffer content) {
+        add(obtain().fill(frame, content, null, 0, 0));
+    }
+
+    /**
+     * Queue a message whose content is a region of a file
+     * @param frame Buffer holding the encoded message header from index 0 up to its position, it is copied
+     */
+    public void addFileRegion(ByteBuffer frame, FileChannel file, long position, int count) {
+        add(obtain().fill(frame, null, file, position, count));
+    }
+
+    private void add(Entry entry) {
+        queuedBytes.addAndGet(entry.size);
+        entries.add(entry);
+    }
+
+    /**
+     * Take a written entry from the pool, or a new one if the pool is empty. Every slot is taken atomically, so
+     * adding threads never get the same entry
+     */
+    private Entry obtain() {
+        for (int i = 0; i < POOL_SIZE; i++) {
+            Entry entry = pool.get(i) == null ? null : pool.getAndSet(i, null);
+            if (entry != null) return entry;
+        }
+        return new Entry();
+    }
+
+    /**
+     * Give a written entry back to the pool, dropping its content, consumer only
+     */
+    private void recycle(Entry entry) {
+        entry.content = null;
+        entry.file = null;
+        for (int i = 0; i < POOL_SIZE; i++) {
+            if (pool.compareAndSet(i, null, entry)) return;
+        }
+    }
+
+    /**
+     * Get the oldest message without taking it out, consumer only
+     */
+    public Entry peek() {
+        return entries.peek();
+    }
+
+    /**
+     * Take out the oldest message once it is completely written, consumer only
+     */
+    public void remove() {
+        Entry entry = entries.poll();
+        if (entry != null) {
+            queuedBytes.addAndGet(-entry.size);
+            frames.increment();
+            recycle(entry);
+        }
+    }
+
+    /**
+     * Time the oldest message can still wait for more messages to be written with it, consumer only. Only a queue
+     * of small control messages waits, anything with content is written at once
+     * @param coalesceNanos Longest time a message waits
+     * @return Nanoseconds to wait, 0 or less for writing now
+     */
+    public long flushDelay(long coalesceNanos) {
+        Entry entry = entries.peek();
+        if (coalesceNanos <= 0 || entry == null || queuedBytes.get() > COALESCE_MAX_BYTES) return 0;
+        return entry.queuedTime + coalesceNanos - System.nanoTime();
+    }
+
+    /**
+     * Write the queued messages to a channel, with one gathering write for many messages. A file region is
+     * transferred once the bytes in front of it are written, consumer only
+     * @param channel Channel to write to, in blocking or non-blocking mode
+     * @param gathered Scratch array of at least GATHER_MAX buffers
+     * @return "true" if some messages are left because the channel doesn't take more now
+     */
+    public boolean writeTo(SocketChannel channel, ByteBuffer[] gathered) throws IOException {
+        while (entries.peek() != null) {
+            // Headers and contents of consecutive messages, up to the first file region
+            int bufferNum = 0;
+            Entry region = null;
+            for (Entry entry : entries) {
+                if (bufferNum + 2 > GATHER_MAX) break;
+                if (entry.header.hasRemaining()) gathered[bufferNum++] = entry.header;
+                if (entry.content != null && entry.content.hasRemaining()) gathered[bufferNum++] = entry.content;
+                if (entry.remaining > 0) {
+                    region = entry;
+                    break;
+                }
+            }
+            if (bufferNum > 0) {
+                channel.write(gathered, 0, bufferNum);
+                writes.increment();
+                if (region != null) region.writeCounted = true;
+                boolean full = gathered[bufferNum - 1].hasRemaining();
+                Arrays.fill(gathered, 0, bufferNum, null);
+                removeWritten();
+                if (full) return true;
+            }
+
+            Entry entry = entries.peek();
+            if (entry != null && entry.remaining > 0 && entry.bytesWritten()) {
+                long len = entry.file.transferTo(entry.position, entry.remaining, channel);
+                if (len == 0 && entry.position >= entry.file.size()) throw new EOFException("File region ends at " + entry.position);
+                if (!entry.writeCounted) writes.increment();
+                entry.writeCounted = true;
+                entry.position += len;
+                entry.remaining -= len;
+                zeroCopyBytes.add(len);
+                if (entry.remaining > 0) return true;
+                remove();
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Take out the messages at the head which are completely written
+     */
+    private void removeWritten() {
+        Entry entry;
+        while ((entry = entries.peek()) != null && entry.bytesWritten() && entry.remaining == 0) remove();
+    }
+
+    /**
+     * Count a write made by a consumer which doesn't use writeTo
+     */
+    public static void countWrite() {
+        writes.increment();
+    }
+
+    /**
+     * Check if the neighbor is falling behind, more bytes are queued than the capacity
+     */
+    public boolean isCongested() {
+        return queuedBytes.get() > capacity;
+    }
+
+    public long queuedBytes() {
+        return queuedBytes.get();
+    }
+
+    /**
+     * Set the callback run by the consumer every time it has written everything queued
+     */
+    public void setDrainListener(Runnable listener) {
+        drainListener = listener;
+    }
+
+    /**
+     * Called by the consumer once the queue is empty
+     */
+    public void drained() {
+        Runnable listener = drainListener;
+        if (listener != null) listener.run();
+    }
+}
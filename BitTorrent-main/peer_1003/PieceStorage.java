@@ -0,0 +1,94 @@
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.file.*;
+
+/**
+ * @description Where the pieces of the shared content are kept, addressed by their position in the piece space the
+ * files of the content are laid end to end in. The backend is chosen with "Storage" in Common.cfg: "mmap" maps the
+ * files into memory (MappedStorage), "channel" reads and writes them with positional file channel calls
+ * (ChannelStorage), and "heap" keeps every piece in an array on the heap and only writes the files once the content
+ * is complete (HeapStorage).
+ */
+public interface PieceStorage extends Closeable {
+    /**
+     * @description One file of the content, starting at "start" in the piece space, with its channel if the file is
+     * kept open
+     */
+    class Segment {
+        final long start, length;
+        final FileChannel channel;
+
+        Segment(long start, long length, FileChannel channel) {
+            this.start = start;
+            this.length = length;
+            this.channel = channel;
+        }
+    }
+
+    /**
+     * Open the content with a backend
+     * @param kind "mmap", "channel" or "heap"
+     * @param path The single file, or the directory holding the files
+     * @param writable "true" to create the files if needed and write pieces into them, "false" to read existing
+     *                 files
+     * @param reserve "true" to reserve every block of new files before writing, "false" to create them sparse
+     */
+    static PieceStorage open(String kind, Path path, FileLayout layout, int pieceSize, boolean writable, boolean reserve) throws IOException {
+        switch (kind) {
+            case "mmap":
+                return new MappedStorage(path, layout, pieceSize, writable, reserve);
+            case "channel":
+                return new ChannelStorage(path, layout, pieceSize, writable, reserve);
+            case "heap":
+                return new HeapStorage(path, layout, pieceSize, writable);
+            default:
+                throw new IllegalArgumentException("Unknown storage " + kind);
+        }
+    }
+
+    /**
+     * Length of a piece, only the last one may be shorter than the piece size
+     */
+    int pieceLen(int pieceIndex);
+
+    /**
+     * Content of a region of the piece space, from 0 to its length, in a buffer of the caller's own
+     */
+    ByteBuffer region(long position, int len);
+
+    /**
+     * Content of a piece from 0 to its length, see region()
+     */
+    ByteBuffer piece(int pieceIndex);
+
+    /**
+     * Keep a complete piece, from the position to the limit of the content
+     */
+    void write(int pieceIndex, ByteBuffer content);
+
+    /**
+     * Bring a region into memory, so that reading it afterwards doesn't wait for the disk
+     */
+    default void load(long position, long len) {
+    }
+
+    /**
+     * Segment whose file holds a whole region and keeps its channel open, for sending the region straight from the
+     * file
+     * @return The segment, or null if there is none
+     */
+    default Segment segmentOf(long position, int len) {
+        return null;
+    }
+
+    /**
+     * Make the written pieces durable
+     */
+    void flush();
+
+    /**
+     * Give the content its final name once every piece is in it, only the first call has an effect
+     */
+    void moveTo(Path target) throws IOException;
+}
@@ -0,0 +1,134 @@
+import java.io.*;
+import java.nio.*;
+import java.util.*;
+import java.util.concurrent.atomic.*;
+import java.util.concurrent.locks.*;
+
+/**
+ * @description Pool of equally sized direct buffers carved out of large off-heap slabs. Buffers are borrowed and
+ * given back instead of being allocated per message or per piece, so a steady transfer leaves the heap flat, and
+ * channels read into and write from them without the hidden copy they make for heap buffers. The pool grows by a
+ * slab whenever it runs dry and never shrinks. The free buffers are kept on an array stack with room for every
+ * buffer of the pool, so borrowing and giving back allocate nothing once the pool has grown. In debug mode every borrowed buffer remembers where it was taken,
+ * so buffers given back twice fail at once and buffers never given back can be reported.
+ */
+public class BufferArena {
+    // Bytes carved out of the native memory at a time
+    private static final int SLAB_BYTES = 4 << 20;
+
+    private static volatile boolean debugDefault = false;
+
+    private final String name;
+    private final int bufferSize, slabBuffers;
+    private final boolean debug;
+    private final ReentrantLock lock = new ReentrantLock();
+    private ByteBuffer[] free = new ByteBuffer[0]; // Free buffers in free[0] to free[freeNum - 1], guarded by the lock
+    private int freeNum = 0;
+    private final Map<ByteBuffer, Throwable> borrowed = Collections.synchronizedMap(new IdentityHashMap<>());
+    private final LongAdder acquired, released;
+    private final AtomicLong buffers = new AtomicLong();
+
+    /**
+     * @param name Prefix of the metrics of this pool
+     * @param bufferSize Capacity of every buffer
+     */
+    public BufferArena(String name, int bufferSize) {
+        this.name = name;
+        this.bufferSize = bufferSize;
+        this.slabBuffers = Math.max(1, SLAB_BYTES / bufferSize);
+        this.debug = debugDefault;
+        this.acquired = Metrics.counter(name + "Acquired");
+        this.released = Metrics.counter(name + "Released");
+        Metrics.gauge(name + "InUse", () -> acquired.sum() - released.sum());
+        Metrics.gauge(name + "OffHeapBytes", () -> buffers.get() * bufferSize);
+    }
+
+    /**
+     * Turn on tracking of the borrowed buffers for every pool created afterwards
+     */
+    public static void setDebug(boolean enabled) {
+        debugDefault = enabled;
+    }
+
+    public int bufferSize() {
+        return bufferSize;
+    }
+
+    /**
+     * Borrow a buffer, its position is 0 and its limit is its capacity
+     */
+    public ByteBuffer acquire() {
+        ByteBuffer buffer = null;
+        lock.lock();
+        try {
+            if (freeNum > 0) {
+                buffer = free[--freeNum];
+                free[freeNum] = null;
+            }
+        }
+        finally {
+            lock.unlock();
+        }
+        if (buffer == null) buffer = grow();
+        acquired.increment();
+        if (debug) borrowed.put(buffer, new Throwable("Buffer from " + name + " taken here"));
+        return buffer.clear();
+    }
+
+    /**
+     * Give a buffer back, it must not be used afterwards
+     */
+    public void release(ByteBuffer buffer) {
+        if (debug && borrowed.remove(buffer) == null) {
+            throw new IllegalStateException("Buffer given back to " + name + " twice or not taken from it");
+        }
+        lock.lock();
+        try {
+            // The stack has room for every buffer of the pool, a full one means a buffer came back twice
+            if (freeNum == free.length) throw new IllegalStateException("Buffer given back to " + name + " twice or not taken from it");
+            free[freeNum++] = buffer;
+        }
+        finally {
+            lock.unlock();
+        }
+        released.increment();
+    }
+
+    /**
+     * Add a slab, keep all its buffers but one in the pool and return that one. The stack grows with the pool
+     */
+    private ByteBuffer grow() {
+        ByteBuffer slab = ByteBuffer.allocateDirect(bufferSize * slabBuffers);
+        lock.lock();
+        try {
+            free = Arrays.copyOf(free, free.length + slabBuffers);
+            for (int i = 1; i < slabBuffers; i++) {
+                free[freeNum++] = slab.limit((i + 1) * bufferSize).position(i * bufferSize).slice();
+            }
+            buffers.addAndGet(slabBuffers);
+        }
+        finally {
+            lock.unlock();
+        }
+        return slab.limit(bufferSize).position(0).slice();
+    }
+
+    /**
+     * Describe the buffers borrowed and not given back yet, with where they were taken in debug mode
+     */
+    public String leakReport() {
+        StringWriter content = new StringWriter();
+        content.append(name).append(": ").append(String.valueOf(acquired.sum() - released.sum())).append(" buffers not given back");
+        if (debug) {
+            PrintWriter writer = new PrintWriter(content);
+            synchronized (borrowed) {
+                for (Throwable site : borrowed.values()) {
+                    writer.println();
+                    site.printStackTrace(writer);
+                }
+            }
+            writer.flush();
+        }
+        return content.toString();
+    }
+}
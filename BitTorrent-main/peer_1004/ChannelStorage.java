@@ -0,0 +1,94 @@
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.file.*;
+
+/**
+ * @description The shared content read and written with positional calls on file channels. Every file keeps its
+ * channel open, so every region can be sent straight from its file, and nothing of the content is held by the peer
+ * beyond the region being read, which is copied into a buffer of its own. A leecher's files are created at their
+ * full length before any piece is written into them.
+ */
+public class ChannelStorage extends LayoutStorage {
+    private final boolean writable;
+
+    /**
+     * @param reserve "true" to reserve every block of new files, "false" to create them sparse
+     */
+    public ChannelStorage(Path path, FileLayout layout, int pieceSize, boolean writable, boolean reserve) throws IOException {
+        super(path, layout, pieceSize, writable, reserve);
+        this.writable = writable;
+    }
+
+    @Override
+    protected Segment open(Path filePath, FileLayout.Entry entry, boolean writable, boolean single) throws IOException {
+        if (writable && filePath.getParent() != null) Files.createDirectories(filePath.getParent());
+        if (writable) preallocate(filePath, entry.length);
+        FileChannel channel = writable
+                ? FileChannel.open(filePath, StandardOpenOption.READ, StandardOpenOption.WRITE, StandardOpenOption.CREATE)
+                : FileChannel.open(filePath, StandardOpenOption.READ);
+        try {
+            if (channel.size() < entry.length && !writable) {
+                throw new EOFException(filePath + " is shorter than " + entry.length + " bytes");
+            }
+            if (channel.size() > entry.length && writable) channel.truncate(entry.length);
+        }
+        catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+        if (entry.length > 0) return new Segment(entry.start, entry.length, channel);
+        channel.close();
+        return new Segment(entry.start, 0, null);
+    }
+
+    @Override
+    public ByteBuffer region(long position, int len) {
+        ByteBuffer copy = ByteBuffer.allocate(len);
+        transfer(position, copy, false);
+        return copy.flip();
+    }
+
+    @Override
+    public void write(int pieceIndex, ByteBuffer content) {
+        transfer((long)pieceIndex * pieceSize, content.duplicate(), true);
+    }
+
+    /**
+     * Read a region into a buffer or write it from a buffer, from the position to the limit of the buffer, file by
+     * file
+     */
+    private void transfer(long position, ByteBuffer buffer, boolean write) {
+        int start = buffer.position(), limit = buffer.limit();
+        try {
+            while (buffer.position() < limit) {
+                long at = position + buffer.position() - start;
+                Segment segment = segments[segmentIndex(at)];
+                buffer.limit((int)Math.min(limit, buffer.position() + segment.start + segment.length - at));
+                while (buffer.hasRemaining()) {
+                    long filePosition = position + buffer.position() - start - segment.start;
+                    int count = write ? segment.channel.write(buffer, filePosition) : segment.channel.read(buffer, filePosition);
+                    if (count < 0) throw new EOFException("Storage ends before " + (position + buffer.position() - start));
+                }
+                buffer.limit(limit);
+            }
+        }
+        catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Force the written pieces to the disk
+     */
+    @Override
+    public void flush() {
+        if (!writable) return;
+        try {
+            for (Segment segment : segments) segment.channel.force(false);
+        }
+        catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+}
@@ -0,0 +1,98 @@
+import java.io.*;
+import java.nio.charset.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.stream.*;
+
+/**
+ * @description Files making up the shared content, laid end to end in one space the pieces are cut from, so a piece
+ * may end in one file and go on in the next. The content is either a single file, or a directory whose files are
+ * listed with their lengths in a file list, one "length path" line per file, the path relative to the directory
+ * with "/" between its parts. Leechers build the same layout from the list as the seed which wrote it.
+ */
+public class FileLayout {
+    /**
+     * @description One file of the content, starting at "start" in the piece space
+     */
+    public static class Entry {
+        final String path;
+        final long start, length;
+
+        Entry(String path, long start, long length) {
+            this.path = path;
+            this.start = start;
+            this.length = length;
+        }
+    }
+
+    private final List<Entry> entries = new ArrayList<>();
+    private long totalLength = 0;
+
+    private void add(String path, long length) {
+        entries.add(new Entry(path, totalLength, length));
+        totalLength += length;
+    }
+
+    /**
+     * Layout of a single file, its only entry stands for the content path itself
+     */
+    public static FileLayout single(long length) {
+        FileLayout layout = new FileLayout();
+        layout.add("", length);
+        return layout;
+    }
+
+    /**
+     * Layout of every regular file under a directory, in the order of their paths
+     */
+    public static FileLayout scan(Path root) throws IOException {
+        List<Path> files;
+        try (Stream<Path> stream = Files.walk(root)) {
+            files = stream.filter(Files::isRegularFile).map(root::relativize).sorted().collect(Collectors.toList());
+        }
+        FileLayout layout = new FileLayout();
+        for (Path file : files) {
+            StringJoiner path = new StringJoiner("/");
+            for (Path part : file) path.add(part.toString());
+            layout.add(path.toString(), Files.size(root.resolve(file)));
+        }
+        return layout;
+    }
+
+    public static FileLayout read(Path listPath) throws IOException {
+        FileLayout layout = new FileLayout();
+        for (String line : Files.readAllLines(listPath, StandardCharsets.UTF_8)) {
+            if (line.isEmpty()) continue;
+            int split = line.indexOf(' ');
+            if (split <= 0) throw new IOException("Bad line in " + listPath + ": " + line);
+            layout.add(line.substring(split + 1), Long.parseLong(line.substring(0, split)));
+        }
+        return layout;
+    }
+
+    public void write(Path listPath) throws IOException {
+        List<String> lines = new ArrayList<>();
+        for (Entry entry : entries) lines.add(entry.length + " " + entry.path);
+        Files.write(listPath, lines, StandardCharsets.UTF_8);
+    }
+
+    public List<Entry> entries() {
+        return entries;
+    }
+
+    public long totalLength() {
+        return totalLength;
+    }
+
+    /**
+     * Location of a file under the content root. A list coming from another peer can't point outside the root
+     */
+    public static Path resolve(Path root, Entry entry) throws IOException {
+        if (entry.path.isEmpty()) return root;
+        Path path = root.resolve(entry.path).normalize();
+        if (!path.startsWith(root.normalize()) || path.equals(root.normalize())) {
+            throw new IOException("File list entry " + entry.path + " is outside the content");
+        }
+        return path;
+    }
+}
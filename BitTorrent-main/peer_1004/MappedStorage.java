@@ -0,0 +1,172 @@
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.file.*;
+import java.util.*;
+
+/**
+ * @description The shared content mapped into memory, so pieces are read and written in place at "index * pieceSize"
+ * and the operating system page cache holds them instead of the heap. The content is one file or the files of a
+ * directory laid end to end, see FileLayout. A single mapping can't go past 2 GB, so files are mapped in windows
+ * cut at whole numbers of pieces in the piece space, and a piece only spans two mappings where it spans two files.
+ * Every file is opened and mapped once at startup. Small files are closed right after, so thousands of them cost
+ * neither open files nor a system call per piece, only larger files keep their channel for sending regions
+ * straight to sockets. A seed maps its content read-only, a leecher maps the partial content it downloads into,
+ * which is created at its full size and renamed to the real name once every piece is in it.
+ */
+public class MappedStorage extends LayoutStorage {
+    // Files from this size on keep their channel open
+    private static final long KEEP_OPEN_BYTES = 1 << 20;
+
+    /**
+     * @description One file of the content and its windows, the window "i" starts at the i-th multiple of the
+     * window length in the piece space, or at the start of the file for the first one
+     */
+    private static class MappedSegment extends Segment {
+        final MappedByteBuffer[] windows;
+
+        MappedSegment(long start, long length, FileChannel channel, MappedByteBuffer[] windows) {
+            super(start, length, channel);
+            this.windows = windows;
+        }
+    }
+
+    /**
+     * Map a single file
+     * @param writable "true" to create the file if needed and map it for writing, "false" to map an existing file
+     *                 read-only
+     */
+    public MappedStorage(Path path, long fileSize, int pieceSize, boolean writable) throws IOException {
+        this(path, FileLayout.single(fileSize), pieceSize, writable);
+    }
+
+    /**
+     * Map every file of a layout
+     * @param path The single file, or the directory holding the files
+     * @param writable "true" to create the files and their directories if needed and map them for writing, "false"
+     *                 to map existing files read-only
+     */
+    public MappedStorage(Path path, FileLayout layout, int pieceSize, boolean writable) throws IOException {
+        this(path, layout, pieceSize, writable, false);
+    }
+
+    /**
+     * @param reserve "true" to reserve every block of new files before mapping them, "false" to create them sparse
+     */
+    public MappedStorage(Path path, FileLayout layout, int pieceSize, boolean writable, boolean reserve) throws IOException {
+        super(path, layout, pieceSize, writable, reserve);
+    }
+
+    /**
+     * Length of the windows, the most whole pieces fitting in one mapping
+     */
+    private long windowLen() {
+        return (long)Math.max(1, Integer.MAX_VALUE / pieceSize) * pieceSize;
+    }
+
+    @Override
+    protected Segment open(Path filePath, FileLayout.Entry entry, boolean writable, boolean single) throws IOException {
+        if (writable && filePath.getParent() != null) Files.createDirectories(filePath.getParent());
+        if (writable) preallocate(filePath, entry.length);
+        boolean keepOpen = single || entry.length >= KEEP_OPEN_BYTES;
+        FileChannel channel = writable
+                ? FileChannel.open(filePath, StandardOpenOption.READ, StandardOpenOption.WRITE, StandardOpenOption.CREATE)
+                : FileChannel.open(filePath, StandardOpenOption.READ);
+        try {
+            if (channel.size() < entry.length && !writable) {
+                throw new EOFException(filePath + " is shorter than " + entry.length + " bytes");
+            }
+            if (channel.size() > entry.length && writable) channel.truncate(entry.length);
+            FileChannel.MapMode mode = writable ? FileChannel.MapMode.READ_WRITE : FileChannel.MapMode.READ_ONLY;
+            long end = entry.start + entry.length, windowLen = windowLen();
+            List<MappedByteBuffer> windows = new ArrayList<>();
+            for (long position = entry.start; position < end; ) {
+                long next = Math.min(end, (position / windowLen + 1) * windowLen);
+                windows.add(channel.map(mode, position - entry.start, next - position));
+                position = next;
+            }
+            return new MappedSegment(entry.start, entry.length, keepOpen ? channel : null, windows.toArray(new MappedByteBuffer[0]));
+        }
+        finally {
+            if (!keepOpen) channel.close();
+        }
+    }
+
+    /**
+     * Window of a segment holding a position, with the position of the window start in the piece space
+     */
+    private ByteBuffer window(Segment segment, long position, long[] windowStart) {
+        long windowLen = windowLen();
+        int i = (int)(position / windowLen - segment.start / windowLen);
+        windowStart[0] = i == 0 ? segment.start : (segment.start / windowLen + i) * windowLen;
+        return ((MappedSegment)segment).windows[i].duplicate();
+    }
+
+    /**
+     * View of a region of the piece space, from 0 to its length. A region in one mapping is a view of the mapping,
+     * a region spanning files is copied into a buffer of its own. Every call returns a buffer of its own, so threads
+     * reading the same region don't share a position
+     */
+    @Override
+    public ByteBuffer region(long position, int len) {
+        long[] windowStart = new long[1];
+        ByteBuffer window = window(segments[segmentIndex(position)], position, windowStart);
+        int offset = (int)(position - windowStart[0]);
+        if (offset + len <= window.limit()) return window.limit(offset + len).position(offset).slice();
+
+        ByteBuffer copy = ByteBuffer.allocate(len);
+        while (copy.hasRemaining()) {
+            long at = position + copy.position();
+            window = window(segments[segmentIndex(at)], at, windowStart);
+            offset = (int)(at - windowStart[0]);
+            window.position(offset).limit(Math.min(window.limit(), offset + copy.remaining()));
+            copy.put(window);
+        }
+        return copy.flip();
+    }
+
+    /**
+     * Bring a region of the piece space into memory, so that reading it afterwards doesn't wait for the disk
+     */
+    @Override
+    public void load(long position, long len) {
+        long end = position + len;
+        long[] windowStart = new long[1];
+        while (position < end) {
+            ByteBuffer window = window(segments[segmentIndex(position)], position, windowStart);
+            int offset = (int)(position - windowStart[0]), count = (int)Math.min(window.limit() - offset, end - position);
+            ((MappedByteBuffer)window).slice(offset, count).load();
+            position += count;
+        }
+    }
+
+    /**
+     * Copy a complete piece into the mapping, from the position to the limit of the content, file by file
+     */
+    @Override
+    public void write(int pieceIndex, ByteBuffer content) {
+        ByteBuffer src = content.duplicate();
+        long position = (long)pieceIndex * pieceSize, start = src.position();
+        long[] windowStart = new long[1];
+        while (src.hasRemaining()) {
+            long at = position + src.position() - start;
+            ByteBuffer window = window(segments[segmentIndex(at)], at, windowStart);
+            int offset = (int)(at - windowStart[0]), len = Math.min(window.limit() - offset, src.remaining());
+            int limit = src.limit();
+            window.position(offset).put(src.limit(src.position() + len));
+            src.limit(limit);
+        }
+    }
+
+    /**
+     * Write the changed parts of the mapping back to the files
+     */
+    @Override
+    public void flush() {
+        for (Segment segment : segments) {
+            for (MappedByteBuffer window : ((MappedSegment)segment).windows) {
+                if (!window.isReadOnly()) window.force();
+            }
+        }
+    }
+}
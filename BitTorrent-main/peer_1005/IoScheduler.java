@@ -0,0 +1,259 @@
+import java.io.*;
+import java.nio.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.concurrent.locks.*;
+import java.util.function.*;
+
+/**
+ * @description Disk scheduler in front of the storage, so that pieces arriving in random order and requests from
+ * many neighbors for random pieces don't turn into scattered small disk accesses. Reads and writes are queued and
+ * served by a single I/O thread like an elevator: everything queued is sorted by its offset in the piece space and
+ * served in one sweep upwards from where the previous sweep stopped, then from the start, with adjacent or
+ * overlapping reads merged into one access and adjacent writes made back to back, one access per piece as the
+ * storage writes whole pieces. Writes are taken into a write-behind buffer and
+ * acknowledged at once, the piece buffer is handed back only once the piece is in the file, and reads of a piece
+ * still waiting to be written are served after it. Written pieces are synced to the disk in batches, once enough
+ * bytes are written or some time has passed since the last sync. A request failing on the disk or in its completion
+ * is handed to the failure handler and the thread goes on with the others, and barriers are released even once the
+ * thread has stopped.
+ */
+public class IoScheduler {
+    private static final LongAdder requests = Metrics.counter("ioRequests");
+    private static final LongAdder accesses = Metrics.counter("ioAccesses");
+    private static final LongAdder latencyMicros = Metrics.counter("ioMicros");
+    private static final LongAdder syncs = Metrics.counter("ioSyncs");
+
+    static {
+        Metrics.ratio("ioMergeRatio", "ioRequests", "ioAccesses");
+        Metrics.ratio("ioMicrosPerRequest", "ioMicros", "ioRequests");
+    }
+
+    /**
+     * @description A queued read, write or barrier. Barriers have no region and are served after everything queued
+     * before them
+     */
+    private static class Request {
+        final long position;
+        final int len;
+        final ByteBuffer content; // Only for writes
+        final int pieceIndex;
+        final Runnable done;
+        final long submitTime = System.nanoTime();
+
+        Request(long position, int len, ByteBuffer content, int pieceIndex, Runnable done) {
+            this.position = position;
+            this.len = len;
+            this.content = content;
+            this.pieceIndex = pieceIndex;
+            this.done = done;
+        }
+
+        boolean isWrite() {
+            return content != null;
+        }
+    }
+
+    private final PieceStorage storage;
+    private final int pieceSize;
+    private final long syncBytes, syncNanos;
+    private final Queue<Request> submitted = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger queued = new AtomicInteger();
+    private final Consumer<RuntimeException> failed;
+    private final Thread thread;
+    private volatile boolean closed = false, stopped = false;
+    private volatile RuntimeException failure;
+
+    // Only touched by the I/O thread
+    private long head = 0, dirtyBytes = 0, lastSync = System.nanoTime();
+
+    /**
+     * @param syncBytes Written bytes after which the file is synced
+     * @param syncMillis Longest time written bytes wait for a sync
+     * @param failed Called on the I/O thread with what a read, a write or a completion threw
+     */
+    public IoScheduler(PieceStorage storage, int pieceSize, long syncBytes, long syncMillis, Consumer<RuntimeException> failed) {
+        this.storage = storage;
+        this.failed = failed;
+        this.pieceSize = pieceSize;
+        this.syncBytes = syncBytes;
+        this.syncNanos = TimeUnit.MILLISECONDS.toNanos(syncMillis);
+        Metrics.gauge("ioQueueDepth", queued::get);
+        thread = PeerThreads.newThread(this::run, "io-scheduler", true);
+        thread.start();
+    }
+
+    /**
+     * Queue a complete piece for writing, it counts as stored from now on
+     * @param content Content of the piece from its position to its limit, it must not change until "done" runs
+     * @param done Run on the I/O thread once the piece is in the file
+     */
+    public void submitWrite(int pieceIndex, ByteBuffer content, Runnable done) {
+        submit(new Request((long)pieceIndex * pieceSize, content.remaining(), content, pieceIndex, done));
+    }
+
+    /**
+     * Queue a read of a part of a piece, which brings it into memory from the disk
+     * @param done Run on the I/O thread once the part can be taken from the storage without waiting for the disk
+     */
+    public void submitRead(int pieceIndex, int offset, int len, Runnable done) {
+        submit(new Request((long)pieceIndex * pieceSize + offset, len, null, pieceIndex, done));
+    }
+
+    /**
+     * Wait until everything queued so far is done and the written pieces are synced
+     * @throws IOException If a request failed or the I/O thread has stopped, so the pieces may not be in the file
+     */
+    public void sync() throws IOException, InterruptedException {
+        CountDownLatch latch = new CountDownLatch(1);
+        submit(new Request(-1, 0, null, -1, latch::countDown));
+        latch.await();
+        if (failure != null) throw new IOException("A disk request failed", failure);
+        if (stopped) throw new IOException("The I/O thread has stopped");
+    }
+
+    private void submit(Request request) {
+        queued.incrementAndGet();
+        submitted.add(request);
+        LockSupport.unpark(thread);
+        // Nothing serves the queue any more
+        if (stopped) abandon();
+    }
+
+    /**
+     * I/O thread, serves everything queued in sweeps until it is shut down
+     */
+    private void run() {
+        try {
+            serveAll();
+        }
+        finally {
+            stopped = true;
+            abandon();
+        }
+    }
+
+    /**
+     * Drop everything queued once the I/O thread has stopped, only barriers are released so that no one waits on
+     * them forever
+     */
+    private void abandon() {
+        Request request;
+        while ((request = submitted.poll()) != null) {
+            queued.decrementAndGet();
+            if (request.position < 0) request.done.run();
+        }
+    }
+
+    private void serveAll() {
+        List<Request> sweep = new ArrayList<>(), barriers = new ArrayList<>();
+        while (!closed) {
+            Request request;
+            while ((request = submitted.poll()) != null) (request.position < 0 ? barriers : sweep).add(request);
+            if (sweep.isEmpty() && barriers.isEmpty()) {
+                long wait = dirtyBytes > 0 ? lastSync + syncNanos - System.nanoTime() : 0;
+                if (dirtyBytes > 0 && wait <= 0) syncNow();
+                else if (wait > 0) LockSupport.parkNanos(this, wait);
+                else LockSupport.park(this);
+                continue;
+            }
+
+            try {
+                // Upwards from the head first, then from the start, a write goes before a read of the same piece
+                sweep.sort(Comparator.comparingLong((Request r) -> r.position < head ? 1 : 0)
+                        .thenComparingLong(r -> r.position)
+                        .thenComparing(r -> !r.isWrite()));
+                for (int first = 0, last; first < sweep.size(); first = last) {
+                    last = first + 1;
+                    long end = sweep.get(first).position + sweep.get(first).len;
+                    while (last < sweep.size() && sweep.get(last).isWrite() == sweep.get(first).isWrite() && sweep.get(last).position <= end) {
+                        Request next = sweep.get(last++);
+                        end = Math.max(end, next.position + next.len);
+                    }
+                    serve(sweep.subList(first, last), end);
+                    head = end;
+                }
+                sweep.clear();
+
+                if (dirtyBytes >= syncBytes || !barriers.isEmpty() || System.nanoTime() - lastSync >= syncNanos) syncNow();
+            }
+            finally {
+                for (Request barrier : barriers) finish(barrier);
+                barriers.clear();
+            }
+        }
+    }
+
+    /**
+     * Serve a run of adjacent or overlapping requests of the same kind, reads as one access and writes in order
+     * with one access each
+     * @param end End of the run in the piece space
+     */
+    private void serve(List<Request> run, long end) {
+        Request first = run.get(0);
+        if (first.isWrite()) {
+            for (Request request : run) {
+                try {
+                    storage.write(request.pieceIndex, request.content);
+                }
+                catch (RuntimeException e) {
+                    fail(e);
+                }
+                accesses.increment();
+            }
+            dirtyBytes += end - first.position;
+        }
+        else {
+            try {
+                storage.load(first.position, end - first.position);
+            }
+            catch (RuntimeException e) {
+                fail(e);
+            }
+            accesses.increment();
+        }
+        for (Request request : run) finish(request);
+    }
+
+    private void finish(Request request) {
+        queued.decrementAndGet();
+        if (request.position >= 0) {
+            requests.increment();
+            latencyMicros.add(TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - request.submitTime));
+        }
+        try {
+            request.done.run();
+        }
+        catch (RuntimeException e) {
+            failed.accept(e);
+        }
+    }
+
+    /**
+     * Remember the first disk failure for sync() and hand it to the handler
+     */
+    private void fail(RuntimeException e) {
+        if (failure == null) failure = e;
+        failed.accept(e);
+    }
+
+    private void syncNow() {
+        try {
+            if (dirtyBytes > 0) {
+                storage.flush();
+                syncs.increment();
+            }
+        }
+        catch (RuntimeException e) {
+            fail(e);
+        }
+        dirtyBytes = 0;
+        lastSync = System.nanoTime();
+    }
+
+    public void shutdown() {
+        closed = true;
+        LockSupport.unpark(thread);
+    }
+}
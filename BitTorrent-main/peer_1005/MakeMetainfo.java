@@ -0,0 +1,46 @@
+import java.nio.file.*;
+import java.util.concurrent.*;
+
+/**
+ * @description Command line tool making the piece hash file of a shared file or directory before the swarm starts,
+ * so the first seed doesn't have to hash it at startup. For a directory the file list is written too. The content
+ * is mapped and its pieces are hashed on all cores, then the Common.cfg lines matching the hash file are printed
+ * along with the hashing throughput.
+ * Usage: java MakeMetainfo <file or directory> <piece size> [hash file] [threads]
+ */
+public class MakeMetainfo {
+    public static void main(String[] args) throws Exception {
+        if (args.length < 2) {
+            System.out.println("Usage: java MakeMetainfo <file or directory> <piece size> [hash file] [threads]");
+            System.exit(1);
+        }
+        Path filePath = Paths.get(args[0]);
+        int pieceSize = Integer.parseInt(args[1]);
+        Path hashPath = Paths.get(args.length > 2 ? args[2] : args[0] + ".hashes");
+        int threadNum = args.length > 3 ? Integer.parseInt(args[3]) : Runtime.getRuntime().availableProcessors();
+
+        boolean directory = Files.isDirectory(filePath);
+        Path listPath = Paths.get(filePath + ".files");
+        FileLayout layout = directory ? FileLayout.scan(filePath) : FileLayout.single(Files.size(filePath));
+        if (directory) layout.write(listPath);
+
+        long fileSize = layout.totalLength();
+        ForkJoinPool pool = new ForkJoinPool(threadNum);
+        PieceHashes hashes;
+        long startTime = System.nanoTime();
+        try (MappedStorage storage = new MappedStorage(filePath, layout, pieceSize, false)) {
+            hashes = PieceHashes.compute(storage, fileSize, pieceSize, pool);
+        }
+        long elapsedNanos = System.nanoTime() - startTime;
+        pool.shutdown();
+        hashes.write(hashPath);
+
+        System.out.printf("Hashed %d pieces, %d bytes with %d threads in %.3f s, %.2f GB/s%n", hashes.pieceNum(), fileSize,
+                threadNum, elapsedNanos / 1e9, fileSize * 1.0 / elapsedNanos);
+        System.out.println("FileName " + filePath.getFileName());
+        System.out.println("FileSize " + fileSize);
+        System.out.println("PieceSize " + pieceSize);
+        if (directory) System.out.println("FileList " + listPath);
+        System.out.println("HashFile " + hashPath);
+    }
+}
@@ -0,0 +1,131 @@
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.concurrent.locks.*;
+import java.util.zip.*;
+
+/**
+ * @description Journal of the pieces a leecher has stored in its partial file, kept next to that file so that a
+ * restarted peer picks up where it stopped instead of starting from zero. Every stored piece appends one entry,
+ * its index followed by the CRC32 of its content. Entries are written and synced in batches, and the storage of the
+ * partial file is always flushed before the entries naming its pieces are synced, so a synced entry never names a
+ * piece that isn't on disk. A torn entry at the end left by a crash is ignored.
+ */
+public class ResumeJournal implements Closeable {
+    private static final int ENTRY_LEN = 8;
+    private static final LongAdder syncs = Metrics.counter("resumeSyncs");
+
+    private final Path path;
+    private final FileChannel channel;
+    private final Queue<long[]> pending = new ConcurrentLinkedQueue<>();
+    private final ReentrantLock lock = new ReentrantLock(); // Held over disk I/O, so not a monitor
+    private boolean closed = false;
+
+    public ResumeJournal(Path path) throws IOException {
+        this.path = path;
+        this.channel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE, StandardOpenOption.CREATE);
+    }
+
+    /**
+     * CRC32 of a piece from its position to its limit
+     */
+    public static int checksum(ByteBuffer piece) {
+        CRC32 crc = new CRC32();
+        crc.update(piece.duplicate());
+        return (int)crc.getValue();
+    }
+
+    /**
+     * Read the entries written so far
+     * @param pieceNum Number of pieces, entries for pieces out of range are ignored
+     * @return Checksum of every piece in the journal by piece index, the last entry of a piece wins
+     */
+    public Map<Integer, Integer> read(int pieceNum) throws IOException {
+        lock.lock();
+        try {
+            Map<Integer, Integer> entries = new HashMap<>();
+            long entryNum = channel.size() / ENTRY_LEN;
+            ByteBuffer buffer = ByteBuffer.allocate(ENTRY_LEN * 1024);
+            for (long position = 0; position < entryNum * ENTRY_LEN; ) {
+                buffer.clear().limit((int)Math.min(buffer.capacity(), entryNum * ENTRY_LEN - position));
+                while (buffer.hasRemaining()) {
+                    if (channel.read(buffer, position + buffer.position()) < 0) throw new EOFException(path + " ends early");
+                }
+                buffer.flip();
+                position += buffer.limit();
+                while (buffer.hasRemaining()) {
+                    int pieceIndex = buffer.getInt(), checksum = buffer.getInt();
+                    if (pieceIndex >= 0 && pieceIndex < pieceNum) entries.put(pieceIndex, checksum);
+                }
+            }
+            // Later entries go after the last whole one
+            channel.truncate(entryNum * ENTRY_LEN);
+            return entries;
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Note a piece stored in the partial file, the entry is written by the next sync
+     * @param content Content of the piece from its position to its limit
+     */
+    public void record(int pieceIndex, ByteBuffer content) {
+        pending.add(new long[] {pieceIndex, checksum(content)});
+    }
+
+    /**
+     * Write the pending entries, after making the pieces they describe durable in the storage
+     */
+    public void sync(PieceStorage storage) throws IOException {
+        lock.lock();
+        try {
+            if (closed || pending.isEmpty()) return;
+            ByteBuffer buffer = ByteBuffer.allocate(ENTRY_LEN * pending.size());
+            long[] entry;
+            while (buffer.remaining() >= ENTRY_LEN && (entry = pending.poll()) != null) {
+                buffer.putInt((int)entry[0]).putInt((int)entry[1]);
+            }
+            buffer.flip();
+            storage.flush();
+            long position = channel.size();
+            while (buffer.hasRemaining()) position += channel.write(buffer, position);
+            channel.force(false);
+            syncs.increment();
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Remove the journal once the file is complete and has its final name
+     */
+    public void delete() throws IOException {
+        lock.lock();
+        try {
+            close();
+            Files.deleteIfExists(path);
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        lock.lock();
+        try {
+            closed = true;
+            channel.close();
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+}